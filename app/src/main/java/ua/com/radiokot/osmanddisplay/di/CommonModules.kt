@@ -6,11 +6,8 @@ import android.content.Context
 import android.os.Handler
 import android.os.Looper
 import com.ctc.wstx.stax.WstxInputFactory
-import com.ctc.wstx.stax.WstxOutputFactory
 import com.fasterxml.jackson.databind.DeserializationFeature
 import com.fasterxml.jackson.databind.ObjectMapper
-import com.fasterxml.jackson.dataformat.xml.XmlFactory
-import com.fasterxml.jackson.dataformat.xml.XmlMapper
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import com.google.android.gms.location.LocationServices
 import com.welie.blessed.BluetoothCentralManager
@@ -25,10 +22,13 @@ import ua.com.radiokot.osmanddisplay.base.util.http.HttpExceptionInterceptor
 import ua.com.radiokot.osmanddisplay.base.view.ToastManager
 import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.BleDisplayCommandSender
 import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.DisplayCommandSender
+import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.DisplayCommandSenderRegistry
+import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.DisplayPacingController
 import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.OsmAndAidlHelper
 import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.OsmAndServiceConnectionListener
 import java.time.Duration
 import java.util.UUID
+import javax.xml.stream.XMLInputFactory
 
 val commonModules: List<Module> = listOf(
     // JSON
@@ -41,13 +41,11 @@ val commonModules: List<Module> = listOf(
 
     // XML
     module {
-        single<XmlMapper> {
-            XmlMapper.builder(
-                XmlFactory.builder()
-                    .xmlInputFactory(WstxInputFactory())
-                    .xmlOutputFactory(WstxOutputFactory())
-                    .build()
-            ).build()
+        single<XMLInputFactory> {
+            WstxInputFactory().apply {
+                // Track files have no use for DTDs and external entities.
+                setProperty(XMLInputFactory.SUPPORT_DTD, false)
+            }
         }
     },
 
@@ -88,15 +86,43 @@ val commonModules: List<Module> = listOf(
 
     // Commands
     module {
-        factory<DisplayCommandSender> { (deviceAddress: String) ->
-            BleDisplayCommandSender(
-                deviceAddress = deviceAddress,
-                serviceUuid = UUID.fromString(getProperty("displayServiceUuid")),
-                characteristicUuid = UUID.fromString(getProperty("displayCharacteristicUuid")),
-                keepAlive = true,
-                context = get()
+        single {
+            // Only a dedicated characteristic makes the ready notifications trustworthy.
+            val readyCharacteristicUuidString: String? =
+                getPropertyOrNull("displayReadyCharacteristicUuid")
+            val readyCharacteristicUuid = readyCharacteristicUuidString
+                ?.takeIf(String::isNotBlank)
+                ?.let(UUID::fromString)
+
+            DisplayCommandSenderRegistry(
+                createSender = { deviceAddress ->
+                    BleDisplayCommandSender(
+                        deviceAddress = deviceAddress,
+                        serviceUuid = UUID.fromString(getProperty("displayServiceUuid")),
+                        characteristicUuid = UUID.fromString(getProperty("displayCharacteristicUuid")),
+                        readyCharacteristicUuid = readyCharacteristicUuid,
+                        keepAlive = true,
+                        context = get()
+                    )
+                },
+                createPacingController = { commandSender ->
+                    DisplayPacingController(
+                        commandSender = commandSender,
+                        hasReadyNotifications = readyCharacteristicUuid != null,
+                    )
+                },
             )
         }
+
+        // The same sender for the same display.
+        factory<DisplayCommandSender> { (deviceAddress: String) ->
+            get<DisplayCommandSenderRegistry>().get(deviceAddress)
+        }
+
+        // The same pacing for the same display.
+        factory<DisplayPacingController> { (deviceAddress: String) ->
+            get<DisplayCommandSenderRegistry>().getPacingController(deviceAddress)
+        }
     },
 
     // Location
@@ -1,12 +1,8 @@
 package ua.com.radiokot.osmanddisplay.di
 
 import android.content.Context
-import android.graphics.Bitmap
 import android.graphics.BitmapFactory
-import android.graphics.Canvas
 import android.graphics.Color
-import android.graphics.ColorMatrixColorFilter
-import android.graphics.Paint
 import com.mapbox.bindgen.Value
 import com.mapbox.common.TileDataDomain
 import com.mapbox.common.TileStore
@@ -35,10 +31,17 @@ import ua.com.radiokot.osmanddisplay.base.extension.addMultipoint
 import ua.com.radiokot.osmanddisplay.base.extension.addTrack
 import ua.com.radiokot.osmanddisplay.base.extension.getNumericProperty
 import ua.com.radiokot.osmanddisplay.base.view.dateformat.DateFormats
+import ua.com.radiokot.osmanddisplay.features.map.logic.FrameBitmapPool
 import ua.com.radiokot.osmanddisplay.features.map.logic.FriendlySnapshotter
 import ua.com.radiokot.osmanddisplay.features.map.logic.MapFrameFactory
+import ua.com.radiokot.osmanddisplay.features.map.logic.MapFrameOverlayPainter
+import ua.com.radiokot.osmanddisplay.features.map.logic.MapSnapshotCache
 import ua.com.radiokot.osmanddisplay.features.map.logic.SnapshotterMapFrameFactory
-import ua.com.radiokot.osmanddisplay.features.track.data.model.ImportedTrackRecord
+import ua.com.radiokot.osmanddisplay.features.map.logic.TrackFrameRasterizer
+import ua.com.radiokot.osmanddisplay.features.map.logic.TrackOnlyMapFrameFactory
+import ua.com.radiokot.osmanddisplay.features.track.data.model.LoadedTrack
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry
+import java.io.File
 import kotlin.math.ceil
 import kotlin.math.floor
 
@@ -48,6 +51,27 @@ enum class InjectedSnapshotter {
     MAP_BROADCASTING,
 }
 
+enum class InjectedMapFrameFactory {
+    /**
+     * Frames with the map snapshots.
+     */
+    MAP,
+
+    /**
+     * Frames with only the track, rendered without the map.
+     */
+    TRACK_ONLY,
+}
+
+private const val MAP_FRAME_SIZE_PX = 200
+
+/**
+ * Pixel ratio of the map broadcasting snapshots, which is the snapshotter default.
+ * The frame crop is taken in these pixels, so the track-only frames
+ * and the import simplification must use the same ratio.
+ */
+internal const val MAP_SNAPSHOT_PIXEL_RATIO = 1.0
+
 val mapModules: List<Module> = listOf(
     // Offline
     module {
@@ -107,6 +131,7 @@ val mapModules: List<Module> = listOf(
                                                                ) ->
             val options = MapSnapshotOptions.Builder()
                 .size(Size(widthPx.toFloat(), heightPx.toFloat()))
+                .pixelRatio(MAP_SNAPSHOT_PIXEL_RATIO.toFloat())
                 .resourceOptions(get())
                 .build()
 
@@ -199,64 +224,72 @@ val mapModules: List<Module> = listOf(
 
     // Map frame factory
     module {
-        factory<MapFrameFactory> { (track: ImportedTrackRecord?, invertOverlays: Boolean) ->
-            val snapshotSizePx = 450
-            val frameSizePx = 200
+        single {
+            FrameBitmapPool()
+        }
 
-            val locationMarker: Bitmap
-            val bearingLineColor: Int
-            val timeColor: Int
-            val timeBackgroundColor: Int
+        single {
+            MapSnapshotCache(
+                directory = File(androidContext().cacheDir, "map_snapshots"),
+                bitmapPool = get(),
+                maxMemorySizeBytes = 8 * 1024 * 1024,
+                maxDiskSizeBytes = 64 * 1024 * 1024,
+            )
+        }
 
-            val defaultLocationMarker = BitmapFactory.decodeResource(
-                get<Context>().resources,
-                R.drawable.location
+        factory {
+            MapFrameOverlayPainter(
+                locationMarker = BitmapFactory.decodeResource(
+                    get<Context>().resources,
+                    R.drawable.location
+                ),
+                timeFormat = DateFormats.timeOnly12h,
             )
+        }
 
-            if (!invertOverlays) {
-                bearingLineColor = Color.BLACK
-                timeColor = Color.WHITE
-                timeBackgroundColor = Color.BLACK
-                locationMarker = defaultLocationMarker
-            } else {
-                bearingLineColor = Color.WHITE
-                timeColor = Color.BLACK
-                timeBackgroundColor = Color.WHITE
-                locationMarker = Bitmap.createBitmap(
-                    defaultLocationMarker.width,
-                    defaultLocationMarker.height,
-                    defaultLocationMarker.config
-                )
-                val inversionPaint = Paint().apply {
-                    colorFilter = ColorMatrixColorFilter(
-                        floatArrayOf(
-                            -1f, 0f, 0f, 0f, 255f,
-                            0f, -1f, 0f, 0f, 255f,
-                            0f, 0f, -1f, 0f, 255f,
-                            0f, 0f, 0f, 1f, 0f
-                        )
-                    )
-                }
-                Canvas(locationMarker).drawBitmap(defaultLocationMarker, 0f, 0f, inversionPaint)
-                defaultLocationMarker.recycle()
-            }
+        factory<MapFrameFactory>(named(InjectedMapFrameFactory.MAP)) { (track: LoadedTrack?) ->
+            val isNorthUpRendering = getProperty("mapNorthUpRendering", "false").toBoolean()
+            val snapshotSizePx =
+                // North-up snapshots must fit the frame at any bearing
+                // with a margin to move within.
+                if (isNorthUpRendering)
+                    720
+                else
+                    450
 
             SnapshotterMapFrameFactory(
                 snapshotter = get(named(InjectedSnapshotter.MAP_BROADCASTING)) {
                     parametersOf(
                         snapshotSizePx,
                         snapshotSizePx,
-                        track?.readTrackGeoJson(),
-                        track?.readPoiGeoJson(),
+                        track?.trackGeoJson,
+                        track?.poiGeoJson,
                     )
                 },
-                locationMarker = locationMarker,
-                frameWidthPx = frameSizePx,
-                frameHeightPx = frameSizePx,
-                bearingLineColor = bearingLineColor,
-                timeFormat = DateFormats.timeOnly12h,
-                timeColor = timeColor,
-                timeBackgroundColor = timeBackgroundColor,
+                overlayPainter = get(),
+                bitmapPool = get(),
+                frameWidthPx = MAP_FRAME_SIZE_PX,
+                frameHeightPx = MAP_FRAME_SIZE_PX,
+                snapshotCache = get(),
+                // Snapshots only contain the map style and the track.
+                snapshotStyle = getProperty<String>("mapStyleUri") + "#" + track?.record?.id,
+                snapshotSizePx = snapshotSizePx,
+                snapshotPixelRatio = MAP_SNAPSHOT_PIXEL_RATIO,
+                isNorthUpRendering = isNorthUpRendering,
+            )
+        }
+
+        factory<MapFrameFactory>(named(InjectedMapFrameFactory.TRACK_ONLY)) { (track: LoadedTrack?) ->
+            TrackOnlyMapFrameFactory(
+                rasterizer = TrackFrameRasterizer(
+                    trackGeometry = track?.geometry ?: TrackGeometry(emptyList()),
+                    poiPoints = track?.poiPoints ?: emptyList(),
+                    pixelRatio = MAP_SNAPSHOT_PIXEL_RATIO,
+                ),
+                overlayPainter = get(),
+                bitmapPool = get(),
+                frameWidthPx = MAP_FRAME_SIZE_PX,
+                frameHeightPx = MAP_FRAME_SIZE_PX,
             )
         }
     }
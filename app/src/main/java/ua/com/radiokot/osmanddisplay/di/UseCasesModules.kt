@@ -5,12 +5,14 @@ import org.koin.core.module.Module
 import org.koin.core.module.dsl.singleOf
 import org.koin.core.parameter.parametersOf
 import org.koin.dsl.module
+import ua.com.radiokot.osmanddisplay.base.extension.getNumericProperty
 import ua.com.radiokot.osmanddisplay.features.main.logic.ScanAndSelectBleDeviceUseCase
 import ua.com.radiokot.osmanddisplay.features.track.brouter.logic.GetTrackFromBRouterWebUseCase
 import ua.com.radiokot.osmanddisplay.features.track.logic.ClearImportedTracksUseCase
 import ua.com.radiokot.osmanddisplay.features.track.logic.ImportTrackUseCase
 import ua.com.radiokot.osmanddisplay.features.track.logic.ReadGeoJsonFileUseCase
 import ua.com.radiokot.osmanddisplay.features.track.logic.ReadGpxFileUseCase
+import ua.com.radiokot.osmanddisplay.features.track.logic.TrackSimplifier
 import java.util.UUID
 
 val useCaseModules: List<Module> = listOf(
@@ -46,10 +48,19 @@ val useCaseModules: List<Module> = listOf(
                     importedTracksRepository = get(),
                     tileStore = get(),
                     tilesetDescriptor = get(),
+                    trackSimplifier = get(),
+                    keepOriginalGeometry = getProperty("trackKeepOriginalGeometry", "false").toBoolean(),
                 )
             }
         }
 
+        single {
+            TrackSimplifier(
+                cameraZoom = checkNotNull(getNumericProperty<Double>("mapCameraZoom")),
+                pixelRatio = MAP_SNAPSHOT_PIXEL_RATIO,
+            )
+        }
+
         factory {
             ClearImportedTracksUseCase(
                 importedTracksRepository = get(),
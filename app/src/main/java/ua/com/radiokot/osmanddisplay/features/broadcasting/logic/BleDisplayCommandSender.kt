@@ -6,24 +6,34 @@ import android.os.Handler
 import android.os.Looper
 import com.welie.blessed.*
 import io.reactivex.Completable
+import io.reactivex.CompletableEmitter
 import io.reactivex.Observable
 import io.reactivex.Single
 import io.reactivex.subjects.BehaviorSubject
 import io.reactivex.subjects.PublishSubject
-import io.reactivex.subjects.SingleSubject
 import io.reactivex.subjects.Subject
 import ua.com.radiokot.osmanddisplay.base.extension.encodeAsHexString
 import ua.com.radiokot.osmanddisplay.base.extension.kLogger
 import ua.com.radiokot.osmanddisplay.features.broadcasting.model.DisplayCommand
+import java.io.IOException
 import java.util.*
 import java.util.concurrent.TimeUnit
 
 /**
  * [DisplayCommandSender] implemented on BLE stack.
  *
+ * Commands of the same priority are written in the order of subscription to [send].
+ * Commands of a higher priority go first, even if they are sent later.
+ * Up to [MAX_IN_FLIGHT_WRITES] writes are handed to the BLE queue at once,
+ * and each write callback is matched to its write by the sequence,
+ * as the queue reports writes in the order they were enqueued.
+ *
  * @param deviceAddress address of the BLE device in form of AA:BB:CC:DD:EE:FF
  * @param serviceUuid UUID of the serial service
  * @param characteristicUuid UUID of the serial service characteristic
+ * @param readyCharacteristicUuid UUID of the dedicated serial service characteristic
+ * the display notifies its readiness through, if it has one.
+ * Otherwise, [readyEvents] never emit
  * @param keepAlive if set, the connection will be left opened for further command sends.
  * Otherwise, the connection is opened and closed for each command send
  */
@@ -31,6 +41,7 @@ class BleDisplayCommandSender(
     private val deviceAddress: String,
     private val serviceUuid: UUID,
     private val characteristicUuid: UUID,
+    private val readyCharacteristicUuid: UUID?,
     private val keepAlive: Boolean,
     private val context: Context,
 ) : DisplayCommandSender {
@@ -39,10 +50,26 @@ class BleDisplayCommandSender(
     private val isBusySubject: Subject<Boolean> = PublishSubject.create()
     override val isBusy: Observable<Boolean> = isBusySubject
 
+    private val readyEventsSubject: Subject<Unit> = PublishSubject.create()
+    override val readyEvents: Observable<Unit> = readyEventsSubject
+
     private var connectedPeripheral: BluetoothPeripheral? = null
     private val connectionSubject: BehaviorSubject<Boolean> =
         BehaviorSubject.create()
-    private var writtenValueSubject: SingleSubject<ByteArray> = SingleSubject.create()
+    private var mtu: Int = DEFAULT_MTU
+
+    private class PendingWrite(
+        val sequence: Long,
+        val data: ByteArray,
+        val writeType: WriteType,
+        val emitter: CompletableEmitter,
+    )
+
+    private val writesLock = Any()
+    private var nextWriteSequence = 0L
+    private val waitingWritesByPriority: Map<DisplayCommandSender.Priority, ArrayDeque<PendingWrite>> =
+        DisplayCommandSender.Priority.values().associateWith { ArrayDeque() }
+    private val inFlightWrites = ArrayDeque<PendingWrite>()
 
     private val centralManager: BluetoothCentralManager by lazy {
         BluetoothCentralManager(context, centralManagerCallback, Handler(Looper.getMainLooper()))
@@ -61,7 +88,10 @@ class BleDisplayCommandSender(
                         "status=$status"
             }
 
+            mtu = DEFAULT_MTU
+            connectedPeripheral = null
             connectionSubject.onNext(false)
+            failPendingWrites(IOException("Peripheral disconnected: $status"))
         }
     }
 
@@ -72,8 +102,50 @@ class BleDisplayCommandSender(
                         "address=${peripheral.address}"
             }
 
-            connectedPeripheral = peripheral
-            connectionSubject.onNext(true)
+            if (readyCharacteristicUuid != null) {
+                peripheral.setNotify(serviceUuid, readyCharacteristicUuid, true)
+            }
+
+            // Bigger MTU allows sending bigger commands in a single write.
+            if (!peripheral.requestMtu(REQUESTED_MTU)) {
+                logger.debug {
+                    "mtu_request_failed: " +
+                            "address=${peripheral.address}"
+                }
+
+                onPeripheralReady(peripheral)
+            }
+        }
+
+        override fun onMtuChanged(peripheral: BluetoothPeripheral, mtu: Int, status: GattStatus) {
+            logger.debug {
+                "mtu_changed: " +
+                        "mtu=$mtu, " +
+                        "\nstatus=$status"
+            }
+
+            if (status == GattStatus.SUCCESS) {
+                this@BleDisplayCommandSender.mtu = mtu
+            }
+
+            onPeripheralReady(peripheral)
+        }
+
+        override fun onCharacteristicUpdate(
+            peripheral: BluetoothPeripheral,
+            value: ByteArray,
+            characteristic: BluetoothGattCharacteristic,
+            status: GattStatus
+        ) {
+            logger.debug {
+                "characteristic_updated: " +
+                        "value=${value.encodeAsHexString()}, " +
+                        "\nstatus=$status"
+            }
+
+            if (status == GattStatus.SUCCESS && characteristic.uuid == readyCharacteristicUuid) {
+                readyEventsSubject.onNext(Unit)
+            }
         }
 
         override fun onCharacteristicWrite(
@@ -82,45 +154,90 @@ class BleDisplayCommandSender(
             characteristic: BluetoothGattCharacteristic,
             status: GattStatus
         ) {
+            if (characteristic.uuid != characteristicUuid) {
+                return
+            }
+
+            val write = synchronized(writesLock) {
+                inFlightWrites.pollFirst()
+            }
+
             logger.debug {
                 "characteristic_written: " +
-                        "value=${value.encodeAsHexString()}, " +
+                        "sequence=${write?.sequence}, " +
+                        "\nvalue=${value.encodeAsHexString()}, " +
                         "\nstatus=$status"
             }
 
-            if (status == GattStatus.SUCCESS) {
-                writtenValueSubject.onSuccess(value)
-            } else {
-                writtenValueSubject.onError(Exception("Unsuccessful GATT status of write: $status"))
+            when {
+                write == null ->
+                    logger.warn {
+                        "unexpected_characteristic_write: " +
+                                "value=${value.encodeAsHexString()}"
+                    }
+
+                !value.contentEquals(write.data) ->
+                    write.emitter.tryOnError(IllegalStateException("Write callback sequence mismatch"))
+
+                status != GattStatus.SUCCESS ->
+                    write.emitter.tryOnError(Exception("Unsuccessful GATT status of write: $status"))
+
+                else ->
+                    write.emitter.onComplete()
             }
+
+            writeNextCommands()
         }
     }
 
-    override fun send(command: DisplayCommand): Completable {
-        val dataToWrite = command.toByteArray()
+    private fun onPeripheralReady(peripheral: BluetoothPeripheral) {
+        connectedPeripheral = peripheral
+        connectionSubject.onNext(true)
+        writeNextCommands()
+    }
 
-        return getConnectedPeripheral()
-            .flatMap { peripheral ->
-                writtenValueSubject = SingleSubject.create()
+    override fun getMaxCommandSize(): Single<Int> =
+        getConnectedPeripheral()
+            .map {
+                // 3 bytes of the ATT header.
+                mtu - 3
+            }
 
-                peripheral.writeCharacteristic(
-                    serviceUuid,
-                    characteristicUuid,
-                    dataToWrite,
-                    if (command.requiresAcq)
-                        WriteType.WITH_RESPONSE
-                    else
-                        WriteType.WITHOUT_RESPONSE
-                )
+    override fun send(
+        command: DisplayCommand,
+        priority: DisplayCommandSender.Priority,
+    ): Completable {
+        val dataToWrite = command.toByteArray()
+        val writeType =
+            if (command.requiresAcq)
+                WriteType.WITH_RESPONSE
+            else
+                WriteType.WITHOUT_RESPONSE
 
-                logger.debug {
-                    "enqueued_characteristic_write: " +
-                            "value=${dataToWrite.encodeAsHexString()}"
+        return Completable.create { emitter ->
+            val waitingWrites = waitingWritesByPriority.getValue(priority)
+            val write = synchronized(writesLock) {
+                PendingWrite(
+                    sequence = nextWriteSequence++,
+                    data = dataToWrite,
+                    writeType = writeType,
+                    emitter = emitter,
+                ).also(waitingWrites::addLast)
+            }
+
+            // Once handed to the BLE queue, the write can't be cancelled.
+            emitter.setCancellable {
+                synchronized(writesLock) {
+                    waitingWrites.remove(write)
                 }
+            }
 
-                writtenValueSubject
+            if (connectedPeripheral == null) {
+                requestConnection()
+            } else {
+                writeNextCommands()
             }
-            .filter { writtenData -> writtenData.contentEquals(dataToWrite) }
+        }
             .timeout(6, TimeUnit.SECONDS)
             .doOnComplete {
                 if (!keepAlive) {
@@ -133,7 +250,82 @@ class BleDisplayCommandSender(
                     }
                 }
             }
-            .ignoreElement()
+    }
+
+    /**
+     * Hands the waiting writes to the BLE queue
+     * while there is room for them in the window.
+     */
+    private fun writeNextCommands() {
+        val peripheral = connectedPeripheral
+            ?: return
+
+        // Handing over is synchronized to keep the BLE queue order
+        // the same as the in-flight writes order.
+        val failedWrites = mutableListOf<PendingWrite>()
+        synchronized(writesLock) {
+            while (inFlightWrites.size < MAX_IN_FLIGHT_WRITES) {
+                val write = getNextWaitingWrite()
+                    ?: break
+
+                val isEnqueued = peripheral.writeCharacteristic(
+                    serviceUuid,
+                    characteristicUuid,
+                    write.data,
+                    write.writeType
+                )
+
+                if (isEnqueued) {
+                    inFlightWrites.addLast(write)
+
+                    logger.debug {
+                        "enqueued_characteristic_write: " +
+                                "sequence=${write.sequence}, " +
+                                "\nvalue=${write.data.encodeAsHexString()}"
+                    }
+                } else {
+                    failedWrites.add(write)
+                }
+            }
+        }
+
+        failedWrites.forEach { it.emitter.tryOnError(IOException("Failed to enqueue the write")) }
+    }
+
+    /**
+     * @return the oldest write of the highest priority, if any
+     */
+    private fun getNextWaitingWrite(): PendingWrite? =
+        DisplayCommandSender.Priority.values()
+            .reversed()
+            .firstNotNullOfOrNull { priority ->
+                waitingWritesByPriority.getValue(priority).pollFirst()
+            }
+
+    private fun failPendingWrites(error: Throwable) {
+        val failedWrites = synchronized(writesLock) {
+            (inFlightWrites + waitingWritesByPriority.values.flatten()).also {
+                inFlightWrites.clear()
+                waitingWritesByPriority.values.forEach(ArrayDeque<PendingWrite>::clear)
+            }
+        }
+        failedWrites.forEach { it.emitter.tryOnError(error) }
+    }
+
+    private fun requestConnection() {
+        if (connectionSubject.value == true) {
+            return
+        }
+
+        centralManager.connectPeripheral(
+            centralManager.getPeripheral(deviceAddress),
+            peripheralCallback
+        )
+
+        logger.debug {
+            "requested_peripheral_connection: " +
+                    "address=${deviceAddress}"
+        }
     }
 
     private fun getConnectedPeripheral(): Single<BluetoothPeripheral> {
@@ -142,17 +334,17 @@ class BleDisplayCommandSender(
             .firstOrError()
             .map { connectedPeripheral!! }
             .doOnSubscribe {
-                if (connectionSubject.value == false || connectedPeripheral == null) {
-                    centralManager.connectPeripheral(
-                        centralManager.getPeripheral(deviceAddress),
-                        peripheralCallback
-                    )
-
-                    logger.debug {
-                        "requested_peripheral_connection: " +
-                                "address=${deviceAddress}"
-                    }
+                if (connectedPeripheral == null) {
+                    requestConnection()
                 }
             }
     }
-}
\ No newline at end of file
+
+    private companion object {
+        private const val DEFAULT_MTU = 23
+        private const val MAX_IN_FLIGHT_WRITES = 4
+
+        // Enough for the biggest frame command.
+        private const val REQUESTED_MTU = 67
+    }
+}
@@ -24,7 +24,6 @@ import ua.com.radiokot.osmanddisplay.base.extension.kLogger
 import ua.com.radiokot.osmanddisplay.features.broadcasting.model.DisplayCommand
 import ua.com.radiokot.osmanddisplay.features.broadcasting.model.NavigationDirection
 import ua.com.radiokot.osmanddisplay.features.main.view.MainActivity
-import java.util.concurrent.TimeUnit
 import kotlin.math.roundToInt
 
 class DirectionsBroadcastingService : Service(), OsmAndServiceConnectionListener {
@@ -56,7 +55,7 @@ class DirectionsBroadcastingService : Service(), OsmAndServiceConnectionListener
 
     private val directionsSubject: Subject<NavigationDirection> = PublishSubject.create()
 
-    private var commandSender: DisplayCommandSender? = null
+    private var pacingController: DisplayPacingController? = null
 
     private lateinit var compositeDisposable: CompositeDisposable
 
@@ -83,7 +82,7 @@ class DirectionsBroadcastingService : Service(), OsmAndServiceConnectionListener
         }
 
         if (deviceAddress != null) {
-            commandSender = get { parametersOf(deviceAddress) }
+            pacingController = get { parametersOf(deviceAddress) }
             subscribeToDirections()
         }
 
@@ -112,27 +111,24 @@ class DirectionsBroadcastingService : Service(), OsmAndServiceConnectionListener
             // Buffer size is set to 1 to eliminate queueing of outdated directions.
             .observeOn(Schedulers.io(), false, 1)
             .concatMapSingle { direction ->
-                commandSender
-                    ?.send(DisplayCommand.ShowDirection(direction))
+                pacingController
+                    // As the direction takes time to be displayed, wait for the display
+                    // to be ready before sending the next one.
+                    //
+                    // In combination with backpressure, this eliminates
+                    // queueing of outdated directions.
+                    ?.send(
+                        DisplayCommand.ShowDirection(direction),
+                        DisplayPacingController.Operation.SHOW_DIRECTION,
+                        // A direction must not wait for a map frame being sent.
+                        DisplayCommandSender.Priority.URGENT,
+                    )
                     ?.doOnSubscribe {
                         logger.debug {
                             "subscribe_to_direction_send: " +
                                     "direction=$direction"
                         }
                     }
-                    ?.doOnComplete {
-                        logger.debug {
-                            "display_delay_started: " +
-                                    "direction=$direction"
-                        }
-                    }
-                    // As we don't wait for an acknowledgment that the direction
-                    // is actually displayed, a delay is introduced to make the subscription
-                    // to wait for the time it normally takes to display a direction.
-                    //
-                    // In combination with backpressure, this eliminates
-                    // queueing of outdated directions.
-                    ?.delay(4800, TimeUnit.MILLISECONDS)
                     ?.toSingleDefault(direction)
                     ?: Single.error(Exception("Command sender is not set"))
             }
@@ -144,7 +140,8 @@ class DirectionsBroadcastingService : Service(), OsmAndServiceConnectionListener
                 onNext = {
                     logger.debug {
                         "direction_processed: " +
-                                "direction=$it"
+                                "direction=$it, " +
+                                "\npacing=${pacingController?.timings}"
                     }
                 },
                 onError = {
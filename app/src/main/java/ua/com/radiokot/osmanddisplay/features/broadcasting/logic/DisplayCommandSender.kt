@@ -2,10 +2,41 @@ package ua.com.radiokot.osmanddisplay.features.broadcasting.logic
 
 import io.reactivex.Completable
 import io.reactivex.Observable
+import io.reactivex.Single
 import ua.com.radiokot.osmanddisplay.features.broadcasting.model.DisplayCommand
 
 interface DisplayCommandSender {
+    /**
+     * Priority of a command among the ones waiting to be sent.
+     */
+    enum class Priority {
+        NORMAL,
+
+        /**
+         * The command is sent before any waiting [NORMAL] one,
+         * e.g. between data chunks of a frame being sent.
+         */
+        URGENT,
+    }
+
     val isBusy: Observable<Boolean>
 
-    fun send(command: DisplayCommand): Completable
-}
\ No newline at end of file
+    /**
+     * Emits each time the display notifies it is ready for further commands.
+     */
+    val readyEvents: Observable<Unit>
+
+    /**
+     * @return max size of a command which fits a single write to the display,
+     * available once the display is connected.
+     */
+    fun getMaxCommandSize(): Single<Int>
+
+    fun send(
+        command: DisplayCommand,
+        priority: Priority,
+    ): Completable
+
+    fun send(command: DisplayCommand): Completable =
+        send(command, Priority.NORMAL)
+}
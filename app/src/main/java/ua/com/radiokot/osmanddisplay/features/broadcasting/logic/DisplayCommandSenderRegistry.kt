@@ -0,0 +1,37 @@
+package ua.com.radiokot.osmanddisplay.features.broadcasting.logic
+
+/**
+ * Holds a single [DisplayCommandSender] and [DisplayPacingController] per display
+ * for the whole process, so all the services sending commands to the same display
+ * share the same connection, the same command queue and the same pacing.
+ *
+ * @param createSender creates a sender for the given device address
+ * @param createPacingController creates a pacing controller for the given sender
+ */
+class DisplayCommandSenderRegistry(
+    private val createSender: (deviceAddress: String) -> DisplayCommandSender,
+    private val createPacingController: (commandSender: DisplayCommandSender) -> DisplayPacingController,
+) {
+    private val senders = mutableMapOf<String, DisplayCommandSender>()
+    private val pacingControllers = mutableMapOf<String, DisplayPacingController>()
+
+    /**
+     * @return the sender of the display with the given [deviceAddress],
+     * created on the first call
+     */
+    fun get(deviceAddress: String): DisplayCommandSender = synchronized(senders) {
+        senders.getOrPut(deviceAddress) {
+            createSender(deviceAddress)
+        }
+    }
+
+    /**
+     * @return the pacing controller of the display with the given [deviceAddress],
+     * created on the first call
+     */
+    fun getPacingController(deviceAddress: String): DisplayPacingController = synchronized(senders) {
+        pacingControllers.getOrPut(deviceAddress) {
+            createPacingController(get(deviceAddress))
+        }
+    }
+}
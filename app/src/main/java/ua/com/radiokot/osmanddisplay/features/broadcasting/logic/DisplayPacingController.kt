@@ -0,0 +1,281 @@
+package ua.com.radiokot.osmanddisplay.features.broadcasting.logic
+
+import io.reactivex.Completable
+import io.reactivex.CompletableEmitter
+import io.reactivex.schedulers.Schedulers
+import ua.com.radiokot.osmanddisplay.base.extension.kLogger
+import ua.com.radiokot.osmanddisplay.features.broadcasting.model.DisplayCommand
+import java.util.concurrent.TimeUnit
+
+/**
+ * Sends commands which take time to be processed by the display
+ * and waits until the display is ready for the next ones.
+ *
+ * The display notifies its readiness through [DisplayCommandSender.readyEvents].
+ * If the notification doesn't come in time, the display is considered ready anyway.
+ * This time is learned from the actual notifications, starting from the
+ * [Operation.defaultDelayMs], so the wait is never longer than it was with fixed delays.
+ *
+ * As the notification doesn't tell which command it is for,
+ * the operations are performed one at a time, so there must be a single controller per display.
+ * Without the notifications, the controller waits for the [Operation.defaultDelayMs]
+ * and learns nothing.
+ *
+ * @param commandSender sender of the commands of a single display
+ * @param hasReadyNotifications whether the display notifies its readiness
+ * through a dedicated characteristic, so the notifications can be trusted
+ */
+class DisplayPacingController(
+    private val commandSender: DisplayCommandSender,
+    private val hasReadyNotifications: Boolean,
+) {
+    enum class Operation(
+        /**
+         * Time it normally takes the display to complete the operation.
+         */
+        val defaultDelayMs: Long,
+    ) {
+        FRAME_PREPARE(1000),
+        FRAME_SHOW(2200),
+        SHOW_DIRECTION(4800),
+    }
+
+    /**
+     * Learned timing of an [Operation].
+     */
+    data class Timing(
+        /**
+         * Smoothed time between the command write and the ready notification.
+         */
+        val estimatedMs: Long,
+        /**
+         * Time after which the display is considered ready
+         * even without the notification.
+         */
+        val maxWaitMs: Long,
+        /**
+         * Count of the ready notifications received in time.
+         */
+        val readyCount: Int,
+        /**
+         * Count of the waits ended without the ready notification.
+         */
+        val missCount: Int,
+    ) {
+        constructor(operation: Operation) : this(
+            estimatedMs = operation.defaultDelayMs,
+            maxWaitMs = operation.defaultDelayMs,
+            readyCount = 0,
+            missCount = 0,
+        )
+    }
+
+    /**
+     * A turn to perform an operation, waiting for the previous ones to complete.
+     */
+    private class Turn(
+        val priority: DisplayCommandSender.Priority,
+        val emitter: CompletableEmitter,
+    ) {
+        var isGranted = false
+    }
+
+    private val logger = kLogger("DisplayPacing")
+
+    private val turnsLock = Any()
+    private var isOperationInProgress = false
+    private val waitingTurns = ArrayDeque<Turn>()
+
+    private val timingsMap: MutableMap<Operation, Timing> =
+        Operation.values().associateWithTo(mutableMapOf()) { Timing(it) }
+
+    /**
+     * Current learned timings of the operations.
+     */
+    val timings: Map<Operation, Timing>
+        get() = synchronized(timingsMap) { timingsMap.toMap() }
+
+    /**
+     * Sends the [command] and completes once the display is ready
+     * after performing the [operation].
+     *
+     * @param priority priority of the [command] among the waiting ones,
+     * also applied to the operations waiting for their turn
+     */
+    fun send(
+        command: DisplayCommand,
+        operation: Operation,
+        priority: DisplayCommandSender.Priority = DisplayCommandSender.Priority.NORMAL,
+    ): Completable = Completable.defer {
+        var turn: Turn? = null
+
+        Completable
+            .create { emitter ->
+                val newTurn = Turn(priority, emitter)
+                turn = newTurn
+                takeTurn(newTurn)
+            }
+            .andThen(
+                if (hasReadyNotifications)
+                    sendAndWaitForReady(command, operation, priority)
+                else
+                    sendAndWaitForDefaultDelay(command, operation, priority)
+            )
+            .doFinally {
+                turn?.also(::leaveTurn)
+            }
+    }
+
+    private fun sendAndWaitForReady(
+        command: DisplayCommand,
+        operation: Operation,
+        priority: DisplayCommandSender.Priority,
+    ): Completable = Completable.defer {
+        val maxWaitMs = getTiming(operation).maxWaitMs
+        var writtenAt = 0L
+
+        // Listen for the notification before sending,
+        // as it may come even before the write confirmation.
+        val readyAt = commandSender.readyEvents
+            .firstOrError()
+            .map { System.currentTimeMillis() }
+            .cache()
+        val readyAtDisposable = readyAt.subscribe({}, {})
+
+        commandSender
+            .send(command, priority)
+            .doOnComplete {
+                writtenAt = System.currentTimeMillis()
+            }
+            .andThen(
+                readyAt
+                    .timeout(maxWaitMs, TimeUnit.MILLISECONDS, Schedulers.io())
+                    .doOnSuccess { onReady(operation, (it - writtenAt).coerceAtLeast(0)) }
+                    .ignoreElement()
+                    .onErrorComplete {
+                        onMissed(operation)
+                        true
+                    }
+            )
+            .doFinally {
+                readyAtDisposable.dispose()
+            }
+    }
+
+    private fun sendAndWaitForDefaultDelay(
+        command: DisplayCommand,
+        operation: Operation,
+        priority: DisplayCommandSender.Priority,
+    ): Completable =
+        commandSender
+            .send(command, priority)
+            .andThen(
+                Completable.timer(operation.defaultDelayMs, TimeUnit.MILLISECONDS, Schedulers.io())
+            )
+
+    /**
+     * Grants the [turn] right away if no operation is in progress,
+     * otherwise puts it after the waiting turns of the same or higher priority.
+     */
+    private fun takeTurn(turn: Turn) {
+        synchronized(turnsLock) {
+            if (!isOperationInProgress) {
+                isOperationInProgress = true
+                turn.isGranted = true
+            } else {
+                val index = waitingTurns
+                    .indexOfFirst { it.priority < turn.priority }
+                    .takeIf { it >= 0 }
+                    ?: waitingTurns.size
+                waitingTurns.add(index, turn)
+            }
+        }
+
+        if (turn.isGranted) {
+            turn.emitter.onComplete()
+        }
+    }
+
+    /**
+     * Removes the [turn] if it is still waiting,
+     * or passes the operation to the next waiting turn if it is granted.
+     */
+    private fun leaveTurn(turn: Turn) {
+        val nextTurn = synchronized(turnsLock) {
+            if (!turn.isGranted) {
+                waitingTurns.remove(turn)
+                return
+            }
+
+            waitingTurns.removeFirstOrNull()
+                ?.also { it.isGranted = true }
+                .also { isOperationInProgress = it != null }
+        }
+
+        nextTurn?.emitter?.onComplete()
+    }
+
+    private fun getTiming(operation: Operation): Timing = synchronized(timingsMap) {
+        timingsMap.getValue(operation)
+    }
+
+    private fun onReady(operation: Operation, elapsedMs: Long) = synchronized(timingsMap) {
+        val timing = timingsMap.getValue(operation)
+        val estimatedMs =
+            if (timing.readyCount == 0)
+                elapsedMs
+            else
+                smooth(timing.estimatedMs, elapsedMs)
+
+        timingsMap[operation] = timing.copy(
+            estimatedMs = estimatedMs,
+            maxWaitMs = getMaxWaitMs(operation, estimatedMs),
+            readyCount = timing.readyCount + 1,
+        )
+
+        logger.debug {
+            "onReady(): ready:" +
+                    "\noperation=$operation," +
+                    "\nelapsed_ms=$elapsedMs," +
+                    "\ntiming=${timingsMap[operation]}"
+        }
+    }
+
+    private fun onMissed(operation: Operation) = synchronized(timingsMap) {
+        val timing = timingsMap.getValue(operation)
+
+        // If the display used to notify, the wait may have been too short.
+        // Move the estimate towards the default to wait longer next time.
+        val estimatedMs =
+            if (timing.readyCount > 0)
+                smooth(timing.estimatedMs, operation.defaultDelayMs)
+            else
+                timing.estimatedMs
+
+        timingsMap[operation] = timing.copy(
+            estimatedMs = estimatedMs,
+            maxWaitMs = getMaxWaitMs(operation, estimatedMs),
+            missCount = timing.missCount + 1,
+        )
+
+        logger.debug {
+            "onMissed(): no_ready_notification:" +
+                    "\noperation=$operation," +
+                    "\ntiming=${timingsMap[operation]}"
+        }
+    }
+
+    private fun smooth(current: Long, sample: Long): Long =
+        (current * (1 - SMOOTHING_FACTOR) + sample * SMOOTHING_FACTOR).toLong()
+
+    private fun getMaxWaitMs(operation: Operation, estimatedMs: Long): Long =
+        (estimatedMs * MAX_WAIT_ESTIMATE_FACTOR).toLong()
+            .plus(MAX_WAIT_MARGIN_MS)
+            .coerceAtMost(operation.defaultDelayMs)
+
+    private companion object {
+        private const val SMOOTHING_FACTOR = 0.25
+        private const val MAX_WAIT_ESTIMATE_FACTOR = 1.5
+        private const val MAX_WAIT_MARGIN_MS = 100L
+    }
+}
@@ -51,13 +51,14 @@ sealed class DisplayCommand(
 
         override fun toByteArray(): ByteArray =
             ByteBuffer
-                .allocate(data.size + 2)
+                .allocate(data.size + HEADER_SIZE)
                 .put(code)
                 .put(data.size.toByte())
                 .put(data)
                 .array()
 
         companion object {
+            const val HEADER_SIZE = 2
             const val MAX_DATA_SIZE = 62
         }
     }
@@ -65,4 +66,64 @@ sealed class DisplayCommand(
     object FrameShow : DisplayCommand(0x32) {
         override fun toByteArray(): ByteArray = byteArrayOf(code)
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes the [data] to the display frame buffer starting from the [offset],
+     * leaving the rest of the buffer untouched.
+     */
+    class FrameDataAt(
+        val offset: Int,
+        val data: ByteArray,
+    ) : DisplayCommand(0x33, requiresAcq = false) {
+        init {
+            require(offset in 0..MAX_OFFSET) {
+                "Offset must be in 0..$MAX_OFFSET"
+            }
+            require(data.size <= MAX_DATA_SIZE) {
+                "Data can't be bigger than $MAX_DATA_SIZE bytes"
+            }
+        }
+
+        override fun toByteArray(): ByteArray =
+            ByteBuffer
+                .allocate(data.size + HEADER_SIZE)
+                .put(code)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putShort(offset.toShort())
+                .put(data.size.toByte())
+                .put(data)
+                .array()
+
+        companion object {
+            const val HEADER_SIZE = 4
+            const val MAX_DATA_SIZE = 60
+            const val MAX_OFFSET = 0xFFFF
+        }
+    }
+
+    /**
+     * Carries the next part of the frame compressed with PackBits.
+     * The part consists of whole packets, which unpacked data
+     * is written to the display frame buffer sequentially, as for [FrameData].
+     */
+    class FrameDataPackBits(val data: ByteArray) : DisplayCommand(0x34, requiresAcq = false) {
+        init {
+            require(data.size <= MAX_DATA_SIZE) {
+                "Data can't be bigger than $MAX_DATA_SIZE bytes"
+            }
+        }
+
+        override fun toByteArray(): ByteArray =
+            ByteBuffer
+                .allocate(data.size + HEADER_SIZE)
+                .put(code)
+                .put(data.size.toByte())
+                .put(data)
+                .array()
+
+        companion object {
+            const val HEADER_SIZE = 2
+            const val MAX_DATA_SIZE = 62
+        }
+    }
+}
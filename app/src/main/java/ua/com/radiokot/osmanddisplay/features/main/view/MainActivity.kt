@@ -7,7 +7,6 @@ import android.content.ComponentName
 import android.content.Intent
 import android.content.ServiceConnection
 import android.graphics.Bitmap
-import android.graphics.drawable.BitmapDrawable
 import android.os.Bundle
 import android.os.IBinder
 import android.view.View
@@ -20,6 +19,7 @@ import androidx.lifecycle.MutableLiveData
 import com.google.android.material.color.MaterialColors
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import com.krishna.debug_tools.activity.ActivityDebugTools
+import io.reactivex.Maybe
 import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.disposables.Disposable
 import io.reactivex.rxkotlin.addTo
@@ -36,14 +36,17 @@ import kotlinx.android.synthetic.main.activity_main.selected_device_text_view
 import kotlinx.android.synthetic.main.activity_main.send_random_direction_button
 import kotlinx.android.synthetic.main.activity_main.start_map_broadcasting_button
 import kotlinx.android.synthetic.main.activity_main.stop_map_broadcasting_button
+import kotlinx.android.synthetic.main.activity_main.track_only_check_box
 import org.koin.android.ext.android.get
 import org.koin.android.ext.android.getKoin
 import org.koin.core.parameter.parametersOf
+import org.koin.core.qualifier.named
 import ua.com.radiokot.osmanddisplay.R
 import ua.com.radiokot.osmanddisplay.base.extension.getNumericProperty
 import ua.com.radiokot.osmanddisplay.base.extension.kLogger
 import ua.com.radiokot.osmanddisplay.base.extension.setThrottleOnClickListener
 import ua.com.radiokot.osmanddisplay.base.view.BaseActivity
+import ua.com.radiokot.osmanddisplay.di.InjectedMapFrameFactory
 import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.DisplayCommandSender
 import ua.com.radiokot.osmanddisplay.features.broadcasting.model.DisplayCommand
 import ua.com.radiokot.osmanddisplay.features.main.data.model.SelectedBleDevice
@@ -51,7 +54,9 @@ import ua.com.radiokot.osmanddisplay.features.main.logic.ScanAndSelectBleDeviceU
 import ua.com.radiokot.osmanddisplay.features.map.logic.MapBroadcastingService
 import ua.com.radiokot.osmanddisplay.features.map.logic.MapFrameFactory
 import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import ua.com.radiokot.osmanddisplay.features.map.model.MonochromeFrame
 import ua.com.radiokot.osmanddisplay.features.track.data.model.ImportedTrackRecord
+import ua.com.radiokot.osmanddisplay.features.track.data.model.LoadedTrack
 import ua.com.radiokot.osmanddisplay.features.track.logic.ClearImportedTracksUseCase
 import ua.com.radiokot.osmanddisplay.features.track.view.ImportedTrackSelectionBottomSheet
 
@@ -106,6 +111,13 @@ class MainActivity : BaseActivity() {
             this::onMapBroadcastingPermissionsGranted
         )
 
+    private val selectedMapFrameFactory: InjectedMapFrameFactory
+        get() =
+            if (track_only_check_box.isChecked)
+                InjectedMapFrameFactory.TRACK_ONLY
+            else
+                InjectedMapFrameFactory.MAP
+
     private val commandSender: DisplayCommandSender
         get() = get { parametersOf(selectedDeviceAddress!!) }
 
@@ -235,7 +247,32 @@ class MainActivity : BaseActivity() {
     private fun captureMapFrame() {
         captureDisposable?.dispose()
 
-        val mapFrameFactory: MapFrameFactory = get { parametersOf(selectedTrackRecord, false) }
+        val track = selectedTrackRecord
+        val trackLoading: Maybe<LoadedTrack> =
+            if (track != null)
+                Maybe.fromCallable(track::load)
+            else
+                Maybe.empty()
+
+        captureDisposable = trackLoading
+            .subscribeOn(Schedulers.io())
+            .observeOn(AndroidSchedulers.mainThread())
+            .subscribeBy(
+                onSuccess = { loadedTrack ->
+                    captureMapFrame(loadedTrack)
+                },
+                onComplete = {
+                    captureMapFrame(null)
+                },
+                onError = { toastManager.short("Error") }
+            )
+            .addTo(compositeDisposable)
+    }
+
+    private fun captureMapFrame(track: LoadedTrack?) {
+        val mapFrameFactory: MapFrameFactory = get(named(selectedMapFrameFactory)) {
+            parametersOf(track)
+        }
 
         captureDisposable = mapFrameFactory
             .composeFrame(
@@ -251,6 +288,7 @@ class MainActivity : BaseActivity() {
                 cameraZoom = mapCameraZoom,
                 postScale = mapFramePostScale,
             )
+            .map(MonochromeFrame::toBitmap)
             .subscribeOn(Schedulers.io())
             .observeOn(AndroidSchedulers.mainThread())
             .doOnEvent { _, _ ->
@@ -265,11 +303,6 @@ class MainActivity : BaseActivity() {
 
     private fun showMapFrame(frame: Bitmap) {
         map_frame_image_view.apply {
-            drawable.also {
-                if (it is BitmapDrawable) {
-                    it.bitmap.recycle()
-                }
-            }
             visibility = View.VISIBLE
             setImageBitmap(frame)
         }
@@ -430,7 +463,8 @@ class MainActivity : BaseActivity() {
             .putExtras(
                 MapBroadcastingService.getBundle(
                     deviceAddress = selectedDeviceAddress!!,
-                    track = selectedTrackRecord
+                    track = selectedTrackRecord,
+                    isTrackOnly = track_only_check_box.isChecked,
                 )
             )
         startForegroundService(intent)
@@ -0,0 +1,94 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+/**
+ * Keeps the hash of the last encoded frame shown on the display
+ * to skip new frames which would look the same.
+ *
+ * The bottom-right corner of the frame can be ignored, as it shows the current time
+ * which changes regardless of the location. In this case, a duplicate frame
+ * is skipped for no longer than [maxSkipTimeMs], so the time doesn't get too outdated.
+ *
+ * @param ignoredCornerWidthPx width of the ignored bottom-right corner in pixels
+ * @param ignoredCornerHeightPx height of the ignored bottom-right corner in pixels
+ * @param maxSkipTimeMs max time since the last shown frame
+ * during which duplicates with the ignored corner are skipped
+ */
+class DuplicateFrameFilter(
+    private val ignoredCornerWidthPx: Int = 0,
+    private val ignoredCornerHeightPx: Int = 0,
+    private val maxSkipTimeMs: Long = 60000,
+) {
+    private var shownFrameHash: Long? = null
+    private var shownAt = 0L
+
+    /**
+     * @param frame encoded frame to check
+     * @param frameWidthPx width of the [frame] in pixels
+     *
+     * @return true if the [frame] looks the same as the shown one and may be skipped
+     */
+    fun isDuplicate(
+        frame: ByteArray,
+        frameWidthPx: Int,
+    ): Boolean {
+        if (shownFrameHash != getHash(frame, frameWidthPx)) {
+            return false
+        }
+
+        return ignoredCornerWidthPx == 0 || ignoredCornerHeightPx == 0
+                || System.currentTimeMillis() - shownAt < maxSkipTimeMs
+    }
+
+    /**
+     * Remembers the [frame] as the one currently shown on the display.
+     */
+    fun onFrameShown(
+        frame: ByteArray,
+        frameWidthPx: Int,
+    ) {
+        shownFrameHash = getHash(frame, frameWidthPx)
+        shownAt = System.currentTimeMillis()
+    }
+
+    /**
+     * Forgets the shown frame, so the next one is not skipped.
+     * Must be called once the display content is unknown.
+     */
+    fun reset() {
+        shownFrameHash = null
+    }
+
+    /**
+     * @return 64-bit FNV-1a hash of the [frame] bytes outside the ignored corner
+     */
+    private fun getHash(
+        frame: ByteArray,
+        frameWidthPx: Int,
+    ): Long {
+        val bytesWidth = (frameWidthPx + 7) / 8
+        val ignoredCornerStartByte = (frameWidthPx - ignoredCornerWidthPx).coerceAtLeast(0) / 8
+        val rowCount = frame.size / bytesWidth
+        val ignoredCornerStartRow = rowCount - ignoredCornerHeightPx
+        var hash = FNV_OFFSET_BASIS
+
+        for (row in 0 until rowCount) {
+            val rowEnd =
+                if (row >= ignoredCornerStartRow && ignoredCornerWidthPx > 0)
+                    ignoredCornerStartByte
+                else
+                    bytesWidth
+
+            val rowOffset = row * bytesWidth
+            for (i in rowOffset until rowOffset + rowEnd) {
+                hash = (hash xor (frame[i].toLong() and 0xFF)) * FNV_PRIME
+            }
+        }
+
+        return hash
+    }
+
+    private companion object {
+        private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL
+        private const val FNV_PRIME = 0x100000001b3L
+    }
+}
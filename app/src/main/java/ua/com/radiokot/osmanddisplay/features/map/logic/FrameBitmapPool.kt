@@ -0,0 +1,171 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import android.graphics.Bitmap
+import ua.com.radiokot.osmanddisplay.base.extension.kLogger
+import java.util.*
+
+/**
+ * Pool of the frame pipeline bitmaps, so once it is warmed up,
+ * frames are composed without allocating new bitmaps.
+ *
+ * Bitmaps are bucketed by their exact size, as the pipeline only uses a few fixed sizes.
+ * Whoever obtains a bitmap owns it until it is either released
+ * or handed off to another owner, which must release it then.
+ * Bitmaps which are never released are accounted per owner, see [stats].
+ *
+ * @param maxBucketCount max count of different bitmap sizes kept
+ * @param maxBitmapsPerBucket max count of free bitmaps of the same size kept
+ */
+class FrameBitmapPool(
+    private val maxBucketCount: Int = 6,
+    private val maxBitmapsPerBucket: Int = 4,
+) {
+    data class Stats(
+        /**
+         * Count of the bitmaps allocated as there were no free ones.
+         */
+        val allocatedCount: Int,
+        /**
+         * Count of the free bitmaps obtained again.
+         */
+        val reusedCount: Int,
+        /**
+         * Count of the obtained bitmaps not released yet by their owners.
+         */
+        val ownedCountByOwner: Map<String, Int>,
+        /**
+         * Count of the free bitmaps kept.
+         */
+        val freeCount: Int,
+    )
+
+    private val logger = kLogger("FrameBitmapPool")
+
+    // Size key to free bitmaps, in the access order.
+    private val buckets = LinkedHashMap<Long, ArrayDeque<Bitmap>>(16, 0.75f, true)
+
+    // Obtained bitmap to its owner.
+    private val owners = IdentityHashMap<Bitmap, String>()
+
+    private var allocatedCount = 0
+    private var reusedCount = 0
+
+    val stats: Stats
+        @Synchronized
+        get() = Stats(
+            allocatedCount = allocatedCount,
+            reusedCount = reusedCount,
+            ownedCountByOwner = owners.values.groupingBy { it }.eachCount(),
+            freeCount = buckets.values.sumOf(ArrayDeque<Bitmap>::size),
+        )
+
+    /**
+     * @param owner name of the owner for leak accounting
+     *
+     * @return mutable ARGB_8888 bitmap of the given size with undefined content.
+     * Release it or hand off once it is not needed.
+     *
+     * @see release
+     * @see handOff
+     */
+    @Synchronized
+    fun obtain(
+        width: Int,
+        height: Int,
+        owner: String,
+    ): Bitmap {
+        val bitmap = buckets[getSizeKey(width, height)]
+            ?.pollFirst()
+            ?.also { reusedCount++ }
+            ?: Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+                .also { allocatedCount++ }
+
+        owners[bitmap] = owner
+
+        return bitmap
+    }
+
+    /**
+     * Passes the ownership of the obtained [bitmap] to the [newOwner],
+     * which must release it then.
+     */
+    @Synchronized
+    fun handOff(
+        bitmap: Bitmap,
+        newOwner: String,
+    ) {
+        if (owners.containsKey(bitmap)) {
+            owners[bitmap] = newOwner
+        }
+    }
+
+    /**
+     * Takes the [bitmap] back to the pool. It must not be used after that.
+     * Suitable bitmaps not obtained from the pool are taken as well,
+     * the rest are recycled.
+     */
+    @Synchronized
+    fun release(bitmap: Bitmap) {
+        val owner = owners.remove(bitmap)
+
+        if (bitmap.isRecycled) {
+            return
+        }
+
+        val sizeKey = getSizeKey(bitmap.width, bitmap.height)
+
+        if (owner == null && buckets[sizeKey]?.any { it === bitmap } == true) {
+            logger.warn {
+                "release(): bitmap_is_already_released:" +
+                        "\nwidth=${bitmap.width}," +
+                        "\nheight=${bitmap.height}"
+            }
+            return
+        }
+
+        if (!bitmap.isMutable || bitmap.config != Bitmap.Config.ARGB_8888) {
+            bitmap.recycle()
+            return
+        }
+
+        val bucket = buckets.getOrPut(sizeKey) { ArrayDeque() }
+        if (bucket.size < maxBitmapsPerBucket) {
+            bucket.addFirst(bitmap)
+        } else {
+            bitmap.recycle()
+        }
+
+        // Drop sizes which are not used anymore.
+        val iterator = buckets.entries.iterator()
+        while (buckets.size > maxBucketCount && iterator.hasNext()) {
+            val (evictedSizeKey, evictedBucket) = iterator.next()
+            if (evictedSizeKey == sizeKey) {
+                break
+            }
+
+            evictedBucket.forEach(Bitmap::recycle)
+            iterator.remove()
+        }
+    }
+
+    /**
+     * Recycles all the free bitmaps and reports bitmaps still owned.
+     */
+    @Synchronized
+    fun clear() {
+        buckets.values.forEach { bucket ->
+            bucket.forEach(Bitmap::recycle)
+        }
+        buckets.clear()
+
+        if (owners.isNotEmpty()) {
+            logger.warn {
+                "clear(): bitmaps_still_owned:" +
+                        "\ncount_by_owner=${stats.ownedCountByOwner}"
+            }
+        }
+    }
+
+    private fun getSizeKey(width: Int, height: Int): Long =
+        width.toLong().shl(32) or height.toLong()
+}
@@ -0,0 +1,99 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+/**
+ * Keeps the last encoded frame shown on the display
+ * and finds row bands of a new frame that differ from it,
+ * so only they can be sent.
+ *
+ * @param maxChangedRatio max ratio of changed bytes to the frame size
+ * at which sending only the changes is still worth it
+ * @param bandMergeGapRows max count of unchanged rows between two bands
+ * to merge them into one, as each band has its own per-command overhead
+ */
+class FrameDeltaTracker(
+    private val maxChangedRatio: Double = 0.5,
+    private val bandMergeGapRows: Int = 1,
+) {
+    private var shownFrame: ByteArray? = null
+
+    /**
+     * @param frame encoded frame to compare
+     * @param bytesWidth size of an encoded frame row in bytes
+     *
+     * @return byte ranges of changed row bands, which is empty if nothing is changed,
+     * or null if the whole frame must be sent.
+     */
+    fun getChangedBands(
+        frame: ByteArray,
+        bytesWidth: Int,
+    ): List<IntRange>? {
+        val shownFrame = this.shownFrame
+            ?.takeIf { it.size == frame.size }
+            ?: return null
+
+        val rowCount = frame.size / bytesWidth
+        val bands = mutableListOf<IntRange>()
+        var changedBytes = 0
+        var bandStartRow = -1
+        var bandEndRow = -1
+
+        for (row in 0 until rowCount) {
+            if (!isRowChanged(shownFrame, frame, row * bytesWidth, bytesWidth)) {
+                continue
+            }
+
+            if (bandStartRow >= 0 && row - bandEndRow - 1 <= bandMergeGapRows) {
+                bandEndRow = row
+            } else {
+                if (bandStartRow >= 0) {
+                    bands.add(bandStartRow * bytesWidth until (bandEndRow + 1) * bytesWidth)
+                    changedBytes += (bandEndRow - bandStartRow + 1) * bytesWidth
+                }
+                bandStartRow = row
+                bandEndRow = row
+            }
+        }
+
+        if (bandStartRow >= 0) {
+            bands.add(bandStartRow * bytesWidth until (bandEndRow + 1) * bytesWidth)
+            changedBytes += (bandEndRow - bandStartRow + 1) * bytesWidth
+        }
+
+        return bands.takeIf { changedBytes <= frame.size * maxChangedRatio }
+    }
+
+    /**
+     * Remembers the [frame] as the one currently shown on the display.
+     * The frame is copied.
+     */
+    fun onFrameShown(frame: ByteArray) {
+        val shownFrame = this.shownFrame
+        if (shownFrame != null && shownFrame.size == frame.size) {
+            frame.copyInto(shownFrame)
+        } else {
+            this.shownFrame = frame.copyOf()
+        }
+    }
+
+    /**
+     * Forgets the shown frame, so the next one is sent in full.
+     * Must be called once the display content is unknown.
+     */
+    fun reset() {
+        shownFrame = null
+    }
+
+    private fun isRowChanged(
+        old: ByteArray,
+        new: ByteArray,
+        offset: Int,
+        length: Int,
+    ): Boolean {
+        for (i in offset until offset + length) {
+            if (old[i] != new[i]) {
+                return true
+            }
+        }
+        return false
+    }
+}
@@ -0,0 +1,61 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import android.os.SystemClock
+import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+
+/**
+ * Measures the time from a location fix to the display showing the frame of it,
+ * which includes composing, sending and the display refresh.
+ *
+ * @param initialLatencyMs latency assumed until there are measurements
+ * @param maxPendingLocationCount max count of the locations waiting for their frames,
+ * as the outdated ones are never shown
+ */
+class FrameLatencyTracker(
+    initialLatencyMs: Long = 6000,
+    private val maxPendingLocationCount: Int = 16,
+) {
+    // Location to its fix time, in the insertion order.
+    private val pendingLocations = object : LinkedHashMap<LocationData, Long>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<LocationData, Long>?) =
+            size > maxPendingLocationCount
+    }
+
+    private var averageLatencyMs = initialLatencyMs.toDouble()
+
+    /**
+     * Smoothed latency of the recent frames.
+     */
+    val latencyMs: Long
+        @Synchronized
+        get() = averageLatencyMs.toLong()
+
+    /**
+     * @param location location to be shown
+     * @param fixElapsedRealtimeMs time of the fix the [location] is based on,
+     * in the [SystemClock.elapsedRealtime] time base
+     */
+    @Synchronized
+    fun onLocation(
+        location: LocationData,
+        fixElapsedRealtimeMs: Long,
+    ) {
+        pendingLocations[location] = fixElapsedRealtimeMs
+    }
+
+    /**
+     * Measures the latency of the frame of the [location] which has just been shown.
+     */
+    @Synchronized
+    fun onFrameShown(location: LocationData) {
+        val fixElapsedRealtimeMs = pendingLocations.remove(location)
+            ?: return
+        val latencyMs = SystemClock.elapsedRealtime() - fixElapsedRealtimeMs
+
+        averageLatencyMs += (latencyMs - averageLatencyMs) * SMOOTHING_FACTOR
+    }
+
+    private companion object {
+        private const val SMOOTHING_FACTOR = 0.3
+    }
+}
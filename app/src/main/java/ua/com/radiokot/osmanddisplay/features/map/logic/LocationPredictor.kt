@@ -0,0 +1,281 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import android.location.Location
+import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import kotlin.math.*
+
+/**
+ * Filters location fixes with a Kalman filter of constant velocity motion
+ * and predicts where the rider is going to be after the given time,
+ * following the estimated turn rate.
+ *
+ * The filter runs in local metric coordinates around the first fix,
+ * separately for the east and the north axes.
+ *
+ * @param accelerationNoiseMs2 expected acceleration of the rider, which is the process noise
+ * @param minPredictionSpeedMs min filtered speed at which the location is predicted
+ */
+class LocationPredictor(
+    private val accelerationNoiseMs2: Double = 1.5,
+    private val minPredictionSpeedMs: Double = 2.5,
+) {
+    /**
+     * Kalman filter of position and velocity along a single axis.
+     */
+    private class AxisFilter {
+        var position = 0.0
+        var velocity = 0.0
+
+        // Covariance matrix.
+        private var pp = 0.0
+        private var pv = 0.0
+        private var vv = 0.0
+
+        fun reset(
+            position: Double,
+            positionVariance: Double,
+            velocity: Double,
+            velocityVariance: Double,
+        ) {
+            this.position = position
+            this.velocity = velocity
+            pp = positionVariance
+            pv = 0.0
+            vv = velocityVariance
+        }
+
+        fun predict(dtS: Double, accelerationVariance: Double) {
+            position += velocity * dtS
+
+            val dt2 = dtS * dtS
+            val newPp = pp + 2 * dtS * pv + dt2 * vv + accelerationVariance * dt2 * dt2 / 4
+            val newPv = pv + dtS * vv + accelerationVariance * dt2 * dtS / 2
+            val newVv = vv + accelerationVariance * dt2
+            pp = newPp
+            pv = newPv
+            vv = newVv
+        }
+
+        fun updatePosition(measuredPosition: Double, variance: Double) {
+            val innovation = measuredPosition - position
+            val s = pp + variance
+            val positionGain = pp / s
+            val velocityGain = pv / s
+
+            position += positionGain * innovation
+            velocity += velocityGain * innovation
+
+            val newPp = (1 - positionGain) * pp
+            val newPv = (1 - positionGain) * pv
+            val newVv = vv - velocityGain * pv
+            pp = newPp
+            pv = newPv
+            vv = newVv
+        }
+
+        fun updateVelocity(measuredVelocity: Double, variance: Double) {
+            val innovation = measuredVelocity - velocity
+            val s = vv + variance
+            val positionGain = pv / s
+            val velocityGain = vv / s
+
+            position += positionGain * innovation
+            velocity += velocityGain * innovation
+
+            val newPp = pp - positionGain * pv
+            val newPv = (1 - velocityGain) * pv
+            val newVv = (1 - velocityGain) * vv
+            pp = newPp
+            pv = newPv
+            vv = newVv
+        }
+    }
+
+    private val east = AxisFilter()
+    private val north = AxisFilter()
+
+    private var originLat = 0.0
+    private var originLng = 0.0
+    private var metersPerLngDegree = 0.0
+    private var lastFixTimeMs = 0L
+    private var hasFix = false
+    private var lastFixBearingDeg: Double? = null
+
+    private var lastHeadingRad: Double? = null
+    private var turnRateRadS = 0.0
+
+    /**
+     * Filtered speed in m/s.
+     */
+    val speedMs: Double
+        @Synchronized
+        get() = hypot(east.velocity, north.velocity)
+
+    /**
+     * Filtered turn rate in deg/s, positive when turning clockwise.
+     */
+    val turnRateDegS: Double
+        @Synchronized
+        get() = Math.toDegrees(turnRateRadS)
+
+    /**
+     * Updates the motion estimate with the new fix.
+     */
+    fun onFix(fix: Location) = onFix(
+        lat = fix.latitude,
+        lng = fix.longitude,
+        fixTimeMs = fix.elapsedRealtimeNanos / 1000000,
+        accuracyM = fix.accuracy.takeIf { fix.hasAccuracy() }?.toDouble(),
+        speedMs = fix.speed.takeIf { fix.hasSpeed() }?.toDouble(),
+        speedAccuracyMs = fix.speedAccuracyMetersPerSecond.takeIf { fix.hasSpeedAccuracy() }?.toDouble(),
+        bearingDeg = fix.bearing.takeIf { fix.hasBearing() }?.toDouble(),
+    )
+
+    /**
+     * Updates the motion estimate with the new fix.
+     *
+     * @param fixTimeMs monotonic time of the fix
+     * @param accuracyM horizontal accuracy of the fix, if known
+     * @param speedMs speed of the fix, if known
+     * @param speedAccuracyMs accuracy of the [speedMs], if known
+     * @param bearingDeg bearing of the fix, if known
+     */
+    @Synchronized
+    fun onFix(
+        lat: Double,
+        lng: Double,
+        fixTimeMs: Long,
+        accuracyM: Double?,
+        speedMs: Double?,
+        speedAccuracyMs: Double?,
+        bearingDeg: Double?,
+    ) {
+        val dtS = (fixTimeMs - lastFixTimeMs) / 1000.0
+        val positionVariance = accuracyM
+            ?.takeIf { it > 0 }
+            ?.let { it * it }
+            ?: DEFAULT_POSITION_VARIANCE
+
+        val isFirstFix = !hasFix
+                || dtS <= 0
+                || dtS > MAX_FIX_INTERVAL_S
+                || abs(lat - originLat) > MAX_ORIGIN_DISTANCE_DEG
+                || abs(lng - originLng) > MAX_ORIGIN_DISTANCE_DEG
+
+        if (isFirstFix) {
+            originLat = lat
+            originLng = lng
+            metersPerLngDegree = METERS_PER_LAT_DEGREE * cos(Math.toRadians(originLat))
+            east.reset(0.0, positionVariance, 0.0, INITIAL_VELOCITY_VARIANCE)
+            north.reset(0.0, positionVariance, 0.0, INITIAL_VELOCITY_VARIANCE)
+            lastHeadingRad = null
+            turnRateRadS = 0.0
+        } else {
+            val accelerationVariance = accelerationNoiseMs2 * accelerationNoiseMs2
+            east.predict(dtS, accelerationVariance)
+            north.predict(dtS, accelerationVariance)
+            east.updatePosition((lng - originLng) * metersPerLngDegree, positionVariance)
+            north.updatePosition((lat - originLat) * METERS_PER_LAT_DEGREE, positionVariance)
+        }
+
+        if (speedMs != null && bearingDeg != null) {
+            val bearingRad = Math.toRadians(bearingDeg)
+            val speedVariance = speedAccuracyMs
+                ?.takeIf { it > 0 }
+                ?.let { it * it }
+                ?: DEFAULT_SPEED_VARIANCE
+            east.updateVelocity(speedMs * sin(bearingRad), speedVariance)
+            north.updateVelocity(speedMs * cos(bearingRad), speedVariance)
+        }
+
+        updateTurnRate(dtS.takeUnless { isFirstFix })
+
+        hasFix = true
+        lastFixBearingDeg = bearingDeg
+        lastFixTimeMs = fixTimeMs
+    }
+
+    private fun updateTurnRate(dtS: Double?) {
+        if (speedMs < MIN_HEADING_SPEED_MS) {
+            lastHeadingRad = null
+            turnRateRadS = 0.0
+            return
+        }
+
+        val headingRad = atan2(east.velocity, north.velocity)
+        val lastHeadingRad = this.lastHeadingRad
+        this.lastHeadingRad = headingRad
+
+        if (lastHeadingRad == null || dtS == null) {
+            return
+        }
+
+        // Wrap the difference to -PI..PI.
+        val headingDiffRad = atan2(sin(headingRad - lastHeadingRad), cos(headingRad - lastHeadingRad))
+        val measuredTurnRateRadS = (headingDiffRad / dtS).coerceIn(-MAX_TURN_RATE_RAD_S, MAX_TURN_RATE_RAD_S)
+        turnRateRadS += (measuredTurnRateRadS - turnRateRadS) * TURN_RATE_SMOOTHING_FACTOR
+    }
+
+    /**
+     * @param horizonMs time since the last fix to predict the location at
+     *
+     * @return location predicted at the [horizonMs] after the last fix
+     * if moving fast enough, the filtered location otherwise,
+     * or null if there were no fixes. The bearing is only set if the last fix had it.
+     */
+    @Synchronized
+    fun predict(horizonMs: Long): LocationData? {
+        if (!hasFix) {
+            return null
+        }
+        val lastFixBearingDeg = lastFixBearingDeg
+        val speedMs = speedMs
+
+        var eastM = east.position
+        var northM = north.position
+        var bearingRad = atan2(east.velocity, north.velocity)
+
+        if (speedMs >= minPredictionSpeedMs) {
+            val horizonS = horizonMs.coerceIn(0L, MAX_HORIZON_MS) / 1000.0
+            val turnRadS = turnRateRadS
+            val endBearingRad = bearingRad + turnRadS * horizonS
+
+            // Follow the arc of the constant turn rate, or a straight line.
+            if (abs(turnRadS) < STRAIGHT_TURN_RATE_RAD_S) {
+                eastM += speedMs * sin(bearingRad) * horizonS
+                northM += speedMs * cos(bearingRad) * horizonS
+            } else {
+                eastM += speedMs / turnRadS * (cos(bearingRad) - cos(endBearingRad))
+                northM += speedMs / turnRadS * (sin(endBearingRad) - sin(bearingRad))
+            }
+
+            bearingRad = endBearingRad
+        }
+
+        return LocationData(
+            lng = originLng + eastM / metersPerLngDegree,
+            lat = originLat + northM / METERS_PER_LAT_DEGREE,
+            bearing =
+            if (lastFixBearingDeg == null)
+                null
+            else if (speedMs >= MIN_HEADING_SPEED_MS)
+                (Math.toDegrees(bearingRad) + 360) % 360
+            else
+                lastFixBearingDeg,
+        )
+    }
+
+    private companion object {
+        private const val METERS_PER_LAT_DEGREE = 111320.0
+        private const val MAX_ORIGIN_DISTANCE_DEG = 0.1
+        private const val MAX_FIX_INTERVAL_S = 60.0
+        private const val DEFAULT_POSITION_VARIANCE = 10.0 * 10.0
+        private const val DEFAULT_SPEED_VARIANCE = 1.0
+        private const val INITIAL_VELOCITY_VARIANCE = 10.0 * 10.0
+        private const val MIN_HEADING_SPEED_MS = 1.0
+        private const val MAX_TURN_RATE_RAD_S = PI / 6
+        private const val STRAIGHT_TURN_RATE_RAD_S = 0.001
+        private const val TURN_RATE_SMOOTHING_FACTOR = 0.5
+        private const val MAX_HORIZON_MS = 15000L
+    }
+}
@@ -0,0 +1,102 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+/**
+ * Chooses how often to sample the location, and hence to compose and send frames,
+ * so the display is fresh when it matters and the battery and BLE are spared when it doesn't.
+ *
+ * Switching to a more frequent mode is immediate,
+ * while switching back requires [backOffLocationCount] locations in a row
+ * suggesting it, so the mode doesn't flap at the thresholds.
+ */
+class LocationSamplingScheduler(
+    private val backOffLocationCount: Int = 3,
+) {
+    /**
+     * Sampling modes, from the least frequent to the most frequent one.
+     *
+     * @param intervalMs desired location update interval
+     * @param minIntervalMs fastest location update interval
+     * @param minDistanceM min distance between the location updates
+     */
+    enum class Mode(
+        val intervalMs: Long,
+        val minIntervalMs: Long,
+        val minDistanceM: Float,
+    ) {
+        /**
+         * Not moving, the frame is only updated once moved noticeably.
+         */
+        STATIONARY(30000, 20000, 10f),
+
+        /**
+         * Walking or riding slowly.
+         */
+        SLOW(8000, 7000, 2f),
+
+        /**
+         * Riding fast, the map moves a lot between the frames.
+         */
+        FAST(4000, 3000, 5f),
+
+        /**
+         * Approaching a turn of the track, the frame must be fresh.
+         */
+        NEAR_TURN(3000, 2000, 2f),
+        ;
+    }
+
+    var mode: Mode = Mode.SLOW
+        private set
+
+    private var backOffCandidateCount = 0
+
+    /**
+     * @param speedMs current speed in m/s
+     * @param isTurnAhead whether there is a turn of the track ahead
+     *
+     * @return new mode if it has changed, null otherwise
+     */
+    fun onLocation(
+        speedMs: Double,
+        isTurnAhead: Boolean,
+    ): Mode? {
+        val suggestedMode = when {
+            speedMs < STATIONARY_SPEED_MS ->
+                Mode.STATIONARY
+            isTurnAhead ->
+                Mode.NEAR_TURN
+            speedMs >= FAST_SPEED_MS ->
+                Mode.FAST
+            else ->
+                Mode.SLOW
+        }
+
+        if (suggestedMode.ordinal < mode.ordinal) {
+            backOffCandidateCount++
+            if (backOffCandidateCount < backOffLocationCount) {
+                return null
+            }
+        }
+        backOffCandidateCount = 0
+
+        if (suggestedMode == mode) {
+            return null
+        }
+
+        mode = suggestedMode
+        return suggestedMode
+    }
+
+    /**
+     * @return distance ahead within which a turn must be looked for at the given speed
+     */
+    fun getTurnLookAheadDistanceM(speedMs: Double): Double =
+        maxOf(MIN_TURN_LOOK_AHEAD_DISTANCE_M, speedMs * TURN_LOOK_AHEAD_TIME_S)
+
+    private companion object {
+        private const val STATIONARY_SPEED_MS = 0.5
+        private const val FAST_SPEED_MS = 4.0
+        private const val MIN_TURN_LOOK_AHEAD_DISTANCE_M = 50.0
+        private const val TURN_LOOK_AHEAD_TIME_S = 20
+    }
+}
@@ -16,6 +16,12 @@ import androidx.core.app.NotificationCompat
 import com.google.android.gms.location.*
 import com.mapbox.maps.*
 import io.reactivex.BackpressureStrategy
+import io.reactivex.Completable
+import io.reactivex.Flowable
+import io.reactivex.Maybe
+import io.reactivex.Observable
+import io.reactivex.Single
+import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.disposables.CompositeDisposable
 import io.reactivex.disposables.Disposable
 import io.reactivex.rxkotlin.addTo
@@ -27,16 +33,23 @@ import org.koin.android.ext.android.get
 import org.koin.android.ext.android.inject
 import org.koin.core.component.KoinComponent
 import org.koin.core.parameter.parametersOf
+import org.koin.core.qualifier.named
 import ua.com.radiokot.osmanddisplay.R
 import ua.com.radiokot.osmanddisplay.base.extension.getNumericProperty
 import ua.com.radiokot.osmanddisplay.base.extension.kLogger
+import ua.com.radiokot.osmanddisplay.di.InjectedMapFrameFactory
 import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.DisplayCommandSender
+import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.DisplayPacingController
 import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.NotificationChannelHelper
 import ua.com.radiokot.osmanddisplay.features.main.view.MainActivity
 import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import ua.com.radiokot.osmanddisplay.features.map.model.MonochromeFrame
 import ua.com.radiokot.osmanddisplay.features.track.data.model.ImportedTrackRecord
+import ua.com.radiokot.osmanddisplay.features.track.data.model.LoadedTrack
 import java.util.*
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.math.roundToInt
 
 class MapBroadcastingService : Service(), KoinComponent {
     inner class Binder : android.os.Binder() {
@@ -50,6 +63,10 @@ class MapBroadcastingService : Service(), KoinComponent {
         requireNotNull(getKoin().getNumericProperty("mapCameraZoom"))
     private val mapFramePostScale: Double =
         getKoin().getNumericProperty("mapFramePostScale", 1.0)
+    private val isFrameDataAtSupported: Boolean =
+        getKoin().getProperty("displaySupportsFrameDataAt", "false").toBoolean()
+    private val isFrameDataPackBitsSupported: Boolean =
+        getKoin().getProperty("displaySupportsFrameDataPackBits", "false").toBoolean()
 
     private val notificationManager: NotificationManager by lazy {
         getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
@@ -57,23 +74,25 @@ class MapBroadcastingService : Service(), KoinComponent {
 
     private var deviceAddress: String? = null
     private lateinit var commandSender: DisplayCommandSender
+    private lateinit var pacingController: DisplayPacingController
     private lateinit var compositeDisposable: CompositeDisposable
     private lateinit var binder: Binder
     private var composedFramesCounter = 0
+    private val frameDeltaTracker = FrameDeltaTracker()
+    private lateinit var duplicateFrameFilter: DuplicateFrameFilter
+    private var trackLookAhead: TrackLookAhead? = null
+    private var routeProgressTracker: RouteProgressTracker? = null
 
     // Needs to be injected in the main thread.
     private lateinit var mapFrameFactory: MapFrameFactory
-    private lateinit var invertedLocationMarkerMapFrameFactory: MapFrameFactory
 
     private val locationClient: FusedLocationProviderClient by inject()
+    private val snapshotCache: MapSnapshotCache by inject()
+    private val bitmapPool: FrameBitmapPool by inject()
 
-    private val locationRequest = LocationRequest.Builder(8000)
-        .setMinUpdateIntervalMillis(7000)
-        .setMaxUpdateDelayMillis(15000)
-        .setMinUpdateDistanceMeters(2f)
-        .setPriority(Priority.PRIORITY_HIGH_ACCURACY)
-        .setGranularity(Granularity.GRANULARITY_FINE)
-        .build()
+    private val locationSamplingScheduler = LocationSamplingScheduler()
+    private val locationPredictor = LocationPredictor()
+    private val frameLatencyTracker = FrameLatencyTracker()
 
     private val locationCallback = object : LocationCallback() {
         override fun onLocationResult(locationResult: LocationResult) {
@@ -104,31 +123,129 @@ class MapBroadcastingService : Service(), KoinComponent {
             "$DEVICE_ADDRESS_EXTRA extra must be set"
         }
         val track = intent?.getParcelableExtra<ImportedTrackRecord>(TRACK_EXTRA)
+        val isTrackOnly = intent?.getBooleanExtra(TRACK_ONLY_EXTRA, false) ?: false
 
         logger.debug {
             "onStartCommand(): starting:" +
                     "\ndevice_address=$deviceAddress," +
-                    "\ntrack=$track" +
+                    "\ntrack=$track," +
+                    "\nis_track_only=$isTrackOnly," +
                     "\nflags=$flags"
         }
 
         this.deviceAddress = deviceAddress
         commandSender = get { parametersOf(deviceAddress) }
-        mapFrameFactory = get { parametersOf(track, false) }
-        invertedLocationMarkerMapFrameFactory = get { parametersOf(track, true) }
+        pacingController = get { parametersOf(deviceAddress) }
+
+        loadTrackAndStart(track, isTrackOnly)
+
+        return START_REDELIVER_INTENT
+    }
+
+    private var trackLoadingDisposable: Disposable? = null
+
+    /**
+     * Loads the [track], if any, in the background
+     * and starts broadcasting once it is loaded.
+     */
+    private fun loadTrackAndStart(
+        track: ImportedTrackRecord?,
+        isTrackOnly: Boolean,
+    ) {
+        val trackLoading: Maybe<LoadedTrack> =
+            if (track != null)
+                Maybe.fromCallable(track::load)
+            else
+                Maybe.empty()
+
+        trackLoadingDisposable?.dispose()
+        trackLoadingDisposable = trackLoading
+            .subscribeOn(Schedulers.io())
+            .observeOn(AndroidSchedulers.mainThread())
+            .doOnSubscribe {
+                logger.debug {
+                    "loadTrackAndStart(): loading:" +
+                            "\ntrack=$track"
+                }
+            }
+            .subscribeBy(
+                onSuccess = { loadedTrack ->
+                    start(loadedTrack, isTrackOnly)
+                },
+                onComplete = {
+                    start(null, isTrackOnly)
+                },
+                onError = {
+                    logger.error(it) { "loadTrackAndStart(): error_occurred" }
+
+                    stopSelf()
+                }
+            )
+            .addTo(compositeDisposable)
+    }
+
+    private fun start(
+        track: LoadedTrack?,
+        isTrackOnly: Boolean,
+    ) {
+        logger.debug {
+            "start(): starting:" +
+                    "\ntrack=$track"
+        }
+
+        val mapFrameFactoryName = named(
+            if (isTrackOnly)
+                InjectedMapFrameFactory.TRACK_ONLY
+            else
+                InjectedMapFrameFactory.MAP
+        )
+        if (this::mapFrameFactory.isInitialized) {
+            mapFrameFactory.destroy()
+        }
+        // The frame factory shares the track geometry parsed once.
+        mapFrameFactory = get(mapFrameFactoryName) { parametersOf(track) }
+        trackLookAhead?.clear()
+        trackLookAhead = null
+        routeProgressTracker = null
+        if (track != null) {
+            trackLookAhead = TrackLookAhead(track.geometry, track.spatialIndex)
+            routeProgressTracker = RouteProgressTracker(
+                trackMatcher = TrackMatcher(track.geometry, track.spatialIndex),
+                distanceIndex = track.distanceIndex,
+            )
+        }
+        subscribeToRouteEvents()
+        duplicateFrameFilter = mapFrameFactory.getTimeCornerSize(mapFramePostScale)
+            .let { timeCornerSize ->
+                DuplicateFrameFilter(
+                    ignoredCornerWidthPx = timeCornerSize?.width ?: 0,
+                    ignoredCornerHeightPx = timeCornerSize?.height ?: 0,
+                )
+            }
 
         subscribeToLocations()
 
         requestLocationUpdates()
-
-        return START_REDELIVER_INTENT
     }
 
+    private fun getLocationRequest(mode: LocationSamplingScheduler.Mode) =
+        LocationRequest.Builder(mode.intervalMs)
+            .setMinUpdateIntervalMillis(mode.minIntervalMs)
+            .setMaxUpdateDelayMillis(mode.intervalMs * 2)
+            .setMinUpdateDistanceMeters(mode.minDistanceM)
+            .setPriority(Priority.PRIORITY_HIGH_ACCURACY)
+            .setGranularity(Granularity.GRANULARITY_FINE)
+            .build()
+
+    /**
+     * Requests location updates according to the current sampling mode.
+     * Repeat requests replace the previous one, as the callback is the same.
+     */
     @SuppressLint("MissingPermission")
     private fun requestLocationUpdates() {
         try {
             locationClient.requestLocationUpdates(
-                locationRequest,
+                getLocationRequest(locationSamplingScheduler.mode),
                 locationCallback,
                 Looper.getMainLooper()
             )
@@ -145,61 +262,142 @@ class MapBroadcastingService : Service(), KoinComponent {
                     "\nlocation=${location}"
         }
 
-        locationsSubject.onNext(
-            // If the speed is significant, feed the predicted future location.
-            if (location.speed >= PREDICTION_SPEED_THRESHOLD_MS && location.hasBearing()) {
-                logger.debug {
-                    "onLocationResult(): predict_future_location"
-                }
+        locationPredictor.onFix(location)
 
-                LocationData.ofDestinationPoint(
-                    currentLocation = location,
-                    travelTimeS = AVERAGE_FRAME_PROCESSING_TIME_S,
-                )
-            } else {
-                LocationData(location)
-            }
+        // Feed the location where the rider is going to be
+        // by the time the frame is shown.
+        val predictionHorizonMs = frameLatencyTracker.latencyMs
+        val predictedLocationData = locationPredictor.predict(predictionHorizonMs)
+            ?: LocationData(location)
+        // Keep the marker on the track unless the rider is off route.
+        val locationData = routeProgressTracker?.onLocation(predictedLocationData)
+            ?: predictedLocationData
+
+        logger.debug {
+            "onLocationResult(): predicted_location:" +
+                    "\nlocation=$locationData," +
+                    "\nhorizon_ms=$predictionHorizonMs," +
+                    "\nspeed_ms=${locationPredictor.speedMs}," +
+                    "\nturn_rate_deg_s=${locationPredictor.turnRateDegS}," +
+                    "\nroute_state=${routeProgressTracker?.state}," +
+                    "\nroute_progress=${routeProgressTracker?.progress}"
+        }
+
+        frameLatencyTracker.onLocation(
+            location = locationData,
+            fixElapsedRealtimeMs = location.elapsedRealtimeNanos / 1000000,
+        )
+
+        trackLookAhead?.onLocation(
+            location = locationData,
+            speedMs = location.speed.toDouble(),
+        )
+        locationsSubject.onNext(locationData)
+
+        if (location.hasSpeed()) {
+            updateLocationSampling(location)
+        }
+    }
+
+    private fun updateLocationSampling(location: Location) {
+        val speedMs = location.speed.toDouble()
+        val isTurnAhead = trackLookAhead?.isTurnAhead(
+            location = LocationData(location),
+            distanceM = locationSamplingScheduler.getTurnLookAheadDistanceM(speedMs),
+        ) == true
+
+        val newMode = locationSamplingScheduler.onLocation(
+            speedMs = speedMs,
+            isTurnAhead = isTurnAhead,
         )
+            ?: return
+
+        logger.debug {
+            "updateLocationSampling(): switching_mode:" +
+                    "\nmode=$newMode," +
+                    "\nspeed_ms=$speedMs," +
+                    "\nis_turn_ahead=$isTurnAhead"
+        }
+
+        requestLocationUpdates()
     }
 
     private var locationsDisposable: Disposable? = null
     private fun subscribeToLocations() {
         var sendStartTime = 0L
-        var frameToSend: Bitmap? = null
 
-        locationsDisposable?.dispose()
-        locationsDisposable = locationsSubject
+        // The latest composed frame waiting to be sent.
+        // Frames are composed while the previous one is being sent,
+        // and only the latest one is sent once the display is free.
+        val composedFrameSlot = AtomicReference<Pair<MonochromeFrame, LocationData>?>()
+        val composedFrameSignals: Subject<Unit> = PublishSubject.create()
+
+        // The latest location waiting for its frame.
+        // It takes precedence over the look ahead frames,
+        // which are only composed when there is nothing else to do.
+        val locationToCompose = AtomicReference<LocationData?>()
+        val lookAheadSignals: Subject<Unit> = PublishSubject.create()
+
+        val framesComposing = Observable.merge(
+            locationsSubject
+                .doOnNext(locationToCompose::set)
+                .map { },
+            lookAheadSignals,
+        )
             // Backpressure dropping strategy is set to eliminate queueing of outdated locations.
             .toFlowable(BackpressureStrategy.LATEST)
             // Buffer size is set to 1 to eliminate queueing of outdated locations.
             .observeOn(Schedulers.io(), false, 1)
-            .concatMapSingle { location ->
-                // Use factory with inverted location marker from time to time
-                // to avoid "burning out" the location marker on the e-ink surface.
-                val frameFactory =
-                    if ((++composedFramesCounter) % 3 == 0)
-                        invertedLocationMarkerMapFrameFactory
-                    else
-                        mapFrameFactory
-
-                frameFactory
-                    .composeFrame(
-                        location = location,
-                        cameraZoom = mapCameraZoom,
-                        postScale = mapFramePostScale,
-                    )
-                    .timeout(5, TimeUnit.SECONDS, Schedulers.io())
-                    .map { it to location }
+            .concatMapMaybe {
+                val location = locationToCompose.getAndSet(null)
+                    ?: return@concatMapMaybe composeLookAheadFrame()
+                        .doOnComplete {
+                            if (trackLookAhead?.hasLocationsToPrepare == true) {
+                                lookAheadSignals.onNext(Unit)
+                            }
+                        }
+                        .toMaybe<Pair<MonochromeFrame, LocationData>>()
+
+                val isInverted = isInvertedFrame(++composedFramesCounter)
+                val preparedFrame = trackLookAhead?.takePreparedFrame(location, isInverted)
+                if (preparedFrame != null) {
+                    Maybe.just(preparedFrame to location)
+                } else {
+                    composeFrame(location, isInverted)
+                        .map { it to location }
+                        .toMaybe()
+                }
+                    .doAfterSuccess {
+                        if (trackLookAhead?.hasLocationsToPrepare == true) {
+                            lookAheadSignals.onNext(Unit)
+                        }
+                    }
+            }
+            .doOnNext { composedFrame ->
+                // The frame that hasn't been sent in time is outdated.
+                composedFrameSlot.set(composedFrame)
+                composedFrameSignals.onNext(Unit)
             }
-            .concatMapSingle { (frame, location) ->
-                frameToSend = frame
+            .ignoreElements()
+
+        val framesSending = composedFrameSignals
+            .toFlowable(BackpressureStrategy.LATEST)
+            .observeOn(Schedulers.io(), false, 1)
+            .concatMapMaybe {
+                val (frame, location) = composedFrameSlot.getAndSet(null)
+                    // Already sent on the previous signal.
+                    ?: return@concatMapMaybe Maybe.empty()
 
                 SendFrameUseCase(
                     frame = frame,
-                    commandSender = commandSender
+                    frameDeltaTracker = frameDeltaTracker,
+                    duplicateFrameFilter = duplicateFrameFilter,
+                    commandSender = commandSender,
+                    pacingController = pacingController,
+                    isFrameDataAtSupported = isFrameDataAtSupported,
+                    isFrameDataPackBitsSupported = isFrameDataPackBitsSupported,
                 )
                     .perform()
-                    .toSingleDefault(frame to location)
                     .doOnSubscribe {
                         logger.debug {
                             "subscribeToLocations(): subscribed_to_frame_sending:" +
@@ -208,31 +406,110 @@ class MapBroadcastingService : Service(), KoinComponent {
                         sendStartTime = System.currentTimeMillis()
                     }
                     .timeout(15, TimeUnit.SECONDS, Schedulers.io())
+                    .flatMapMaybe { isSent ->
+                        if (isSent)
+                            Maybe.just(frame to location)
+                        else
+                            Maybe.empty()
+                    }
             }
+
+        locationsDisposable?.dispose()
+        locationsDisposable = Flowable.merge(
+            framesComposing.toFlowable<Pair<MonochromeFrame, LocationData>>(),
+            framesSending,
+        )
             .doOnSubscribe {
                 logger.debug { "subscribeToLocations(): subscribed" }
             }
             .subscribeOn(Schedulers.io())
-            .subscribeBy(
-                onNext = { (sentFrame, location) ->
-                    logger.debug {
-                        "subscribeToLocations(): frame_sent," +
-                                "\ntime=${System.currentTimeMillis() - sendStartTime}," +
-                                "\nlocation=$location"
-                    }
+            .map { (sentFrame, location) ->
+                frameLatencyTracker.onFrameShown(location)
 
-                    addSentFrameToNotification(sentFrame)
-                },
+                logger.debug {
+                    "subscribeToLocations(): frame_sent," +
+                            "\ntime=${System.currentTimeMillis() - sendStartTime}," +
+                            "\nlocation=$location," +
+                            "\nlatency_ms=${frameLatencyTracker.latencyMs}," +
+                            "\npacing=${pacingController.timings}," +
+                            "\nsnapshot_cache=${snapshotCache.stats}," +
+                            "\nbitmap_pool=${bitmapPool.stats}," +
+                            "\nlook_ahead=${trackLookAhead?.stats}"
+                }
+
+                sentFrame
+            }
+            .observeOn(AndroidSchedulers.mainThread())
+            .subscribeBy(
+                onNext = this::showFrameInNotification,
                 onError = {
                     logger.error(it) { "subscribeToLocations(): error_occurred" }
 
-                    frameToSend?.recycle()
+                    // Sending may have been interrupted half way.
+                    frameDeltaTracker.reset()
+                    duplicateFrameFilter.reset()
                     subscribeToLocations()
                 }
             )
             .addTo(compositeDisposable)
     }
 
+    /**
+     * @return whether the overlays of the frame of the given number are inverted.
+     * The location marker is inverted from time to time
+     * to avoid "burning out" it on the e-ink surface.
+     */
+    private fun isInvertedFrame(frameNumber: Int): Boolean =
+        frameNumber % 3 == 0
+
+    private fun composeFrame(
+        location: LocationData,
+        isInverted: Boolean,
+    ): Single<MonochromeFrame> {
+        return mapFrameFactory
+            .composeFrame(
+                location = location,
+                cameraZoom = mapCameraZoom,
+                postScale = mapFramePostScale,
+                invertOverlays = isInverted,
+            )
+            .timeout(5, TimeUnit.SECONDS, Schedulers.io())
+    }
+
+    /**
+     * Composes the frame for the next look ahead location, if there is any.
+     */
+    private fun composeLookAheadFrame(): Completable {
+        val trackLookAhead = trackLookAhead
+            ?: return Completable.complete()
+        val locationToPrepare = trackLookAhead.getNextLocationToPrepare()
+            ?: return Completable.complete()
+        val location = locationToPrepare.location
+        // Draw the frame as the one of the sequence it is going to be shown in.
+        val isInverted = isInvertedFrame(composedFramesCounter + locationToPrepare.framesAhead)
+
+        return mapFrameFactory
+            .composeFrame(
+                location = location,
+                cameraZoom = mapCameraZoom,
+                postScale = mapFramePostScale,
+                invertOverlays = isInverted,
+            )
+            .timeout(5, TimeUnit.SECONDS, Schedulers.io())
+            .doOnSuccess { frame ->
+                trackLookAhead.onFramePrepared(location, frame, isInverted)
+            }
+            .ignoreElement()
+            .doOnError {
+                logger.warn(it) {
+                    "composeLookAheadFrame(): failed_composing:" +
+                            "\nlocation=$location"
+                }
+            }
+            // Look ahead frames are optional.
+            .onErrorComplete()
+    }
+
     private fun getNotification(frame: Bitmap? = null): Notification {
         val pendingIntent: PendingIntent =
             Intent(this, MainActivity::class.java)
@@ -251,6 +528,7 @@ class MapBroadcastingService : Service(), KoinComponent {
             NotificationChannelHelper.BROADCASTING_NOTIFICATION_CHANNEL_ID
         )
             .setContentText(getText(R.string.map_broadcasting_is_running))
+            .setSubText(routeProgressTracker?.let(::getRouteProgressText))
             .setSmallIcon(R.drawable.ic_map)
             .setContentIntent(pendingIntent)
             .setForegroundServiceBehavior(NotificationCompat.FOREGROUND_SERVICE_IMMEDIATE)
@@ -263,13 +541,63 @@ class MapBroadcastingService : Service(), KoinComponent {
             .build()
     }
 
-    private var lastShownNotificationFrame: Bitmap? = null
-    private fun addSentFrameToNotification(frame: Bitmap) {
-        lastShownNotificationFrame?.recycle()
-        lastShownNotificationFrame = frame
+    private fun getRouteProgressText(routeProgressTracker: RouteProgressTracker): String? {
+        val progress = routeProgressTracker.progress
+
+        return when {
+            routeProgressTracker.state == RouteProgressTracker.State.OFF_ROUTE ->
+                getString(R.string.off_route)
+            progress != null ->
+                getString(
+                    R.string.template_track_progress,
+                    progress.distanceToGoM / 1000,
+                    (progress.fraction * 100).roundToInt(),
+                )
+            else ->
+                null
+        }
+    }
+
+    private var routeEventsDisposable: Disposable? = null
+    private fun subscribeToRouteEvents() {
+        routeEventsDisposable?.dispose()
+        routeEventsDisposable = routeProgressTracker
+            ?.events
+            ?.observeOn(AndroidSchedulers.mainThread())
+            ?.subscribeBy { event ->
+                logger.debug {
+                    "subscribeToRouteEvents(): route_event:" +
+                            "\nevent=$event"
+                }
+
+                // Show the route state change without waiting for the next frame.
+                notificationManager.notify(
+                    NOTIFICATION_ID,
+                    getNotification(notificationFrame)
+                )
+            }
+            ?.addTo(compositeDisposable)
+    }
+
+    // Reused for every sent frame, accessed on the main thread only.
+    // The notification takes a copy of the bitmap, so it can be redrawn right away.
+    private var notificationFrame: Bitmap? = null
+    private var notificationFramePixels = IntArray(0)
+    private fun showFrameInNotification(frame: MonochromeFrame) {
+        val bitmap = notificationFrame
+            ?.takeIf { it.width == frame.width && it.height == frame.height }
+            ?: bitmapPool.obtain(frame.width, frame.height, BITMAP_OWNER).also { newBitmap ->
+                notificationFrame?.also(bitmapPool::release)
+                notificationFrame = newBitmap
+            }
+        if (notificationFramePixels.size < frame.width * frame.height) {
+            notificationFramePixels = IntArray(frame.width * frame.height)
+        }
+        frame.drawTo(bitmap, notificationFramePixels)
+
         notificationManager.notify(
             NOTIFICATION_ID,
-            getNotification(frame)
+            getNotification(bitmap)
         )
     }
 
@@ -277,28 +605,38 @@ class MapBroadcastingService : Service(), KoinComponent {
         logger.debug { "onDestroy(): destroying" }
 
         compositeDisposable.dispose()
+        trackLookAhead?.clear()
         if (this::mapFrameFactory.isInitialized) {
             mapFrameFactory.destroy()
         }
         locationClient.removeLocationUpdates(locationCallback)
+        notificationFrame?.also(bitmapPool::release)
+        notificationFrame = null
+        // Reports the frames which are never released.
+        bitmapPool.clear()
 
         super.onDestroy()
     }
 
     companion object {
         private const val NOTIFICATION_ID = 2
-        private const val PREDICTION_SPEED_THRESHOLD_MS = 2.5
-        private const val AVERAGE_FRAME_PROCESSING_TIME_S = 6
+        private const val BITMAP_OWNER = "MapBroadcastingService"
 
         private const val DEVICE_ADDRESS_EXTRA = "device_address"
         private const val TRACK_EXTRA = "track"
+        private const val TRACK_ONLY_EXTRA = "track_only"
 
+        /**
+         * @param isTrackOnly if set, frames only have the track on them, without the map
+         */
         fun getBundle(
             deviceAddress: String,
-            track: ImportedTrackRecord?
+            track: ImportedTrackRecord?,
+            isTrackOnly: Boolean,
         ) = Bundle().apply {
             putString(DEVICE_ADDRESS_EXTRA, deviceAddress)
             putParcelable(TRACK_EXTRA, track)
+            putBoolean(TRACK_ONLY_EXTRA, isTrackOnly)
         }
     }
 }
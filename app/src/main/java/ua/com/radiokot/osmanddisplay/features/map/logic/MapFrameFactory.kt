@@ -1,8 +1,9 @@
 package ua.com.radiokot.osmanddisplay.features.map.logic
 
-import android.graphics.Bitmap
+import android.util.Size
 import io.reactivex.Single
 import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import ua.com.radiokot.osmanddisplay.features.map.model.MonochromeFrame
 
 interface MapFrameFactory {
     /**
@@ -10,12 +11,25 @@ interface MapFrameFactory {
      * @param cameraZoom map camera zoom that controls map details level
      * @param postScale scale of the composed frame, once the map snapshot is already taken.
      * Value < 1 means a bigger area is fit into the frame, but all the objects are smaller
+     * @param invertOverlays whether to draw the overlays, such as the location marker,
+     * with inverted colors
+     *
+     * @return frame packed in the display format
      */
     fun composeFrame(
         location: LocationData,
         cameraZoom: Double,
         postScale: Double,
-    ): Single<Bitmap>
+        invertOverlays: Boolean = false,
+    ): Single<MonochromeFrame>
+
+    /**
+     * @param postScale the same post scale as for [composeFrame]
+     *
+     * @return size of the bottom-right frame corner with the current time,
+     * which content changes regardless of the location, or null if there is no such corner
+     */
+    fun getTimeCornerSize(postScale: Double): Size?
 
     fun destroy()
 }
\ No newline at end of file
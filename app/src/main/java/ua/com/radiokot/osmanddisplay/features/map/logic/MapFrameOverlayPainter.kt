@@ -0,0 +1,161 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.ColorMatrixColorFilter
+import android.graphics.Paint
+import android.graphics.Rect
+import android.graphics.Typeface
+import android.util.Size
+import java.text.DateFormat
+import java.util.Date
+import kotlin.math.ceil
+
+/**
+ * Draws overlays of a map frame: the location marker with the bearing and the current time.
+ * The overlays can be drawn inverted, which is switched per frame.
+ *
+ * @param locationMarker marker for the normal overlays, which is inverted for the inverted ones
+ */
+class MapFrameOverlayPainter(
+    private val locationMarker: Bitmap,
+    private val timeFormat: DateFormat,
+) {
+    private class Paints(
+        val locationMarker: Paint?,
+        val bearingLine: Paint,
+        val time: Paint,
+        val timeBackground: Paint,
+    )
+
+    private val normalPaints = createPaints(
+        locationMarker = null,
+        foregroundColor = Color.BLACK,
+        backgroundColor = Color.WHITE,
+    )
+    private val invertedPaints = createPaints(
+        locationMarker = Paint().apply {
+            colorFilter = ColorMatrixColorFilter(
+                floatArrayOf(
+                    -1f, 0f, 0f, 0f, 255f,
+                    0f, -1f, 0f, 0f, 255f,
+                    0f, 0f, -1f, 0f, 255f,
+                    0f, 0f, 0f, 1f, 0f
+                )
+            )
+        },
+        foregroundColor = Color.WHITE,
+        backgroundColor = Color.BLACK,
+    )
+    private val timeHeight = normalPaints.time.fontMetrics.run { bottom - top }
+    private val timeDescent = normalPaints.time.fontMetrics.descent
+
+    /**
+     * Draws the location marker at the given position,
+     * the bearing indicator if there is a bearing, and the time in the bottom-right corner.
+     *
+     * @param frameWidth width of the frame area starting at the canvas origin
+     * @param frameHeight height of the frame area starting at the canvas origin
+     * @param isInverted whether to draw the overlays with inverted colors
+     */
+    fun draw(
+        canvas: Canvas,
+        frameWidth: Int,
+        frameHeight: Int,
+        locationX: Float,
+        locationY: Float,
+        hasBearing: Boolean,
+        isInverted: Boolean,
+    ) {
+        val paints =
+            if (isInverted)
+                invertedPaints
+            else
+                normalPaints
+
+        // Draw the location marker.
+        canvas.drawBitmap(
+            locationMarker,
+            locationX - locationMarker.width / 2f,
+            locationY - locationMarker.height / 2f,
+            paints.locationMarker
+        )
+
+        // Draw the bearing indicator on the marker
+        // as a line pointing from the center.
+        if (hasBearing) {
+            canvas.drawLine(
+                locationX,
+                locationY,
+                locationX,
+                locationY - BEARING_CIRCLE_RADIUS,
+                paints.bearingLine,
+            )
+        }
+
+        // Draw the time in 12h format, to be shorter.
+        val time = timeFormat.format(Date())
+        val timeWidth = paints.time.measureText(time)
+        val timeBackgroundRect =
+            Rect(
+                frameWidth - timeWidth.toInt(),
+                frameHeight - timeHeight.toInt(),
+                frameWidth,
+                frameHeight
+            )
+        canvas.drawRect(timeBackgroundRect, paints.timeBackground)
+        canvas.drawText(
+            time,
+            timeBackgroundRect.left.toFloat(),
+            timeBackgroundRect.bottom - timeDescent,
+            paints.time
+        )
+    }
+
+    /**
+     * @param postScale scale the overlays are drawn with
+     *
+     * @return size of the bottom-right corner with the time
+     */
+    fun getTimeCornerSize(postScale: Double): Size {
+        // The widest time possible, as digits may have different width.
+        val maxTimeWidth = (0..9).maxOf { digit ->
+            normalPaints.time.measureText("$digit$digit:$digit$digit")
+        }
+
+        return Size(
+            ceil(maxTimeWidth * postScale).toInt() + 1,
+            ceil(timeHeight * postScale).toInt() + 1,
+        )
+    }
+
+    private companion object {
+        private fun createPaints(
+            locationMarker: Paint?,
+            foregroundColor: Int,
+            backgroundColor: Int,
+        ) = Paints(
+            locationMarker = locationMarker,
+            bearingLine = Paint().apply {
+                color = foregroundColor
+                strokeWidth = BEARING_LINE_WIDTH
+            },
+            // The time is drawn inverted to stand out.
+            time = Paint().apply {
+                typeface = Typeface.DEFAULT_BOLD
+                textSize = TIME_TEXT_SIZE
+                style = Paint.Style.FILL
+                color = backgroundColor
+            },
+            timeBackground = Paint().apply {
+                style = Paint.Style.FILL
+                color = foregroundColor
+            },
+        )
+
+        private const val BEARING_CIRCLE_RADIUS = 10f
+        private const val BEARING_LINE_WIDTH = 5f
+        private const val TIME_TEXT_SIZE = 21f
+    }
+}
@@ -0,0 +1,365 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import android.graphics.Bitmap
+import android.util.LruCache
+import ua.com.radiokot.osmanddisplay.base.extension.kLogger
+import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
+import kotlin.math.*
+
+/**
+ * Caches map snapshots in memory and on disk, so repeat positions
+ * don't require map rendering.
+ *
+ * Snapshots are kept as 8-bit grayscale, which is all [MonochromeFrameEncoder] takes from them,
+ * so frames are averaged and thresholded from the same brightness whether the snapshot is cached or not.
+ * On disk, snapshots are deflated. To make repeat positions match, snapshots must be taken at [Key.location],
+ * which is the requested location quantized on the map pixel grid.
+ *
+ * @param directory directory for the disk cache, which is used exclusively
+ * @param bitmapPool pool to obtain the returned snapshot bitmaps from
+ * @param maxMemorySizeBytes max size of the snapshots kept in memory
+ * @param maxDiskSizeBytes max size of the snapshot files kept on disk
+ * @param positionStepPx position quantization step in map pixels at the snapshot zoom
+ * @param bearingStepDeg bearing quantization step in degrees
+ */
+class MapSnapshotCache(
+    private val directory: File,
+    private val bitmapPool: FrameBitmapPool,
+    maxMemorySizeBytes: Int,
+    private val maxDiskSizeBytes: Long,
+    private val positionStepPx: Double = 2.0,
+    private val bearingStepDeg: Double = 5.0,
+) {
+    /**
+     * Quantized snapshot parameters.
+     *
+     * @param x quantized map pixel X at the [zoom]
+     * @param y quantized map pixel Y at the [zoom]
+     * @param bearing quantized bearing step index, or -1 if there is no bearing
+     * @param zoom zoom in hundredths
+     * @param style style identifier, including the overlays
+     * @param width snapshot width, not counting the pixel ratio
+     * @param height snapshot height, not counting the pixel ratio
+     * @param pixelRatio snapshot pixel ratio in hundredths
+     * @param location location the snapshot must be taken at
+     */
+    data class Key(
+        val x: Long,
+        val y: Long,
+        val bearing: Int,
+        val zoom: Int,
+        val style: String,
+        val width: Int,
+        val height: Int,
+        val pixelRatio: Int,
+        val location: LocationData,
+    ) {
+        val fileName: String
+            get() = "${style.hashCode().toUInt().toString(16)}_${width}x${height}@${pixelRatio}" +
+                    "_${zoom}_${x}_${y}_$bearing"
+    }
+
+    data class Stats(
+        val memoryHitCount: Int,
+        val diskHitCount: Int,
+        val missCount: Int,
+        val memorySizeBytes: Int,
+        val diskSizeBytes: Long,
+        val diskEntryCount: Int,
+    ) {
+        val hitRate: Double
+            get() = (memoryHitCount + diskHitCount).toDouble()
+                .div(memoryHitCount + diskHitCount + missCount)
+                .takeUnless(Double::isNaN)
+                ?: 0.0
+    }
+
+    /**
+     * @param data row-major brightness of the pixels
+     */
+    private class Snapshot(
+        val width: Int,
+        val height: Int,
+        val data: ByteArray,
+    )
+
+    private val logger = kLogger("MapSnapshotCache")
+
+    private val memoryCache = object : LruCache<Key, Snapshot>(maxMemorySizeBytes) {
+        override fun sizeOf(key: Key, value: Snapshot): Int =
+            value.data.size
+    }
+
+    // File name to size, in the access order.
+    private val diskEntries: LinkedHashMap<String, Long> by lazy(::readDiskEntries)
+    private var diskSizeBytes = 0L
+
+    // Reused for converting the snapshots.
+    private val pixelsLock = Any()
+    private var pixels = IntArray(0)
+
+    private var memoryHitCount = 0
+    private var diskHitCount = 0
+    private var missCount = 0
+
+    /**
+     * Current cache stats for tuning.
+     */
+    val stats: Stats
+        get() = synchronized(this) {
+            // Read the entries first to load the disk size.
+            val diskEntryCount = diskEntries.size
+
+            Stats(
+                memoryHitCount = memoryHitCount,
+                diskHitCount = diskHitCount,
+                missCount = missCount,
+                memorySizeBytes = memoryCache.size(),
+                diskSizeBytes = diskSizeBytes,
+                diskEntryCount = diskEntryCount,
+            )
+        }
+
+    /**
+     * @param widthPx snapshot width, not counting the [pixelRatio]
+     * @param heightPx snapshot height, not counting the [pixelRatio]
+     *
+     * @return key of the snapshot of the given parameters,
+     * which [Key.location] the snapshot must be taken at
+     */
+    fun getKey(
+        location: LocationData,
+        zoom: Double,
+        style: String,
+        widthPx: Int,
+        heightPx: Int,
+        pixelRatio: Double,
+    ): Key {
+        val worldSizePx = MAP_TILE_SIZE_PX * 2.0.pow(zoom)
+        val latRad = Math.toRadians(location.lat)
+
+        val x = ((location.lng + 180) / 360 * worldSizePx / positionStepPx).roundToLong()
+        val y = ((1 - ln(tan(latRad) + 1 / cos(latRad)) / PI) / 2 * worldSizePx / positionStepPx)
+            .roundToLong()
+        val bearingSteps = (360 / bearingStepDeg).roundToInt()
+        val bearing = location.bearing
+            ?.let { (it / bearingStepDeg).roundToInt().mod(bearingSteps) }
+            ?: -1
+
+        return Key(
+            x = x,
+            y = y,
+            bearing = bearing,
+            zoom = (zoom * 100).roundToInt(),
+            style = style,
+            width = widthPx,
+            height = heightPx,
+            pixelRatio = (pixelRatio * 100).roundToInt(),
+            location = LocationData(
+                lng = x * positionStepPx / worldSizePx * 360 - 180,
+                lat = Math.toDegrees(atan(sinh(PI * (1 - 2 * y * positionStepPx / worldSizePx)))),
+                bearing = if (bearing >= 0) bearing * bearingStepDeg else null,
+            ),
+        )
+    }
+
+    /**
+     * @return mutable grayscale snapshot bitmap from the pool if it is cached,
+     * owned by the caller
+     */
+    fun get(key: Key): Bitmap? {
+        val snapshot = synchronized(this) {
+            memoryCache.get(key)
+                ?.also { memoryHitCount++ }
+                ?: readFromDisk(key)
+                    ?.also {
+                        diskHitCount++
+                        memoryCache.put(key, it)
+                    }
+                ?: run {
+                    missCount++
+                    null
+                }
+        }
+            ?: return null
+
+        return toBitmap(snapshot)
+    }
+
+    /**
+     * Caches the grayscale [snapshot] taken at [Key.location].
+     * The [snapshot] pixels are replaced with the cached ones, so it is the same as if it was cached.
+     * The [snapshot] is not recycled.
+     */
+    fun put(key: Key, snapshot: Bitmap) {
+        val width = snapshot.width
+        val height = snapshot.height
+        val data = ByteArray(width * height)
+
+        synchronized(pixelsLock) {
+            val pixels = getPixelsBuffer(width * height)
+            snapshot.getPixels(pixels, 0, width, 0, 0, width, height)
+            for (i in data.indices) {
+                // In a grayscale pixel all RGB bytes are equal.
+                val brightness = pixels[i] and 0xFF
+                data[i] = brightness.toByte()
+                pixels[i] = getGrayPixel(brightness)
+            }
+            snapshot.setPixels(pixels, 0, width, 0, 0, width, height)
+        }
+
+        synchronized(this) {
+            val cachedSnapshot = Snapshot(width, height, data)
+            memoryCache.put(key, cachedSnapshot)
+            writeToDisk(key, cachedSnapshot)
+        }
+    }
+
+    private fun readDiskEntries(): LinkedHashMap<String, Long> {
+        val entries = LinkedHashMap<String, Long>(16, 0.75f, true)
+
+        directory.mkdirs()
+        directory.listFiles()
+            ?.sortedBy(File::lastModified)
+            ?.forEach { file ->
+                // Leftover of an interrupted write.
+                if (file.name.endsWith(TEMP_FILE_EXTENSION)) {
+                    file.delete()
+                    return@forEach
+                }
+
+                entries[file.name] = file.length()
+                diskSizeBytes += file.length()
+            }
+
+        return entries
+    }
+
+    private fun readFromDisk(key: Key): Snapshot? {
+        val fileName = key.fileName
+        if (diskEntries[fileName] == null) {
+            return null
+        }
+
+        val file = File(directory, fileName)
+
+        return try {
+            DataInputStream(InflaterInputStream(file.inputStream()).buffered()).use { input ->
+                val version = input.readInt()
+                if (version != FILE_VERSION) {
+                    throw IOException("Unknown version $version")
+                }
+                val width = input.readInt()
+                val height = input.readInt()
+                val data = ByteArray(width * height)
+                input.readFully(data)
+                Snapshot(width, height, data)
+            }.also {
+                // Keep the access order after restart.
+                file.setLastModified(System.currentTimeMillis())
+            }
+        } catch (e: IOException) {
+            logger.warn(e) {
+                "readFromDisk(): failed_reading_snapshot:" +
+                        "\nfile=$fileName"
+            }
+
+            removeFromDisk(fileName)
+            null
+        }
+    }
+
+    private fun writeToDisk(key: Key, snapshot: Snapshot) {
+        val fileName = key.fileName
+        val file = File(directory, fileName)
+        val tempFile = File(directory, fileName + TEMP_FILE_EXTENSION)
+
+        try {
+            directory.mkdirs()
+            DataOutputStream(DeflaterOutputStream(tempFile.outputStream()).buffered()).use { output ->
+                output.writeInt(FILE_VERSION)
+                output.writeInt(snapshot.width)
+                output.writeInt(snapshot.height)
+                output.write(snapshot.data)
+            }
+
+            if (!tempFile.renameTo(file)) {
+                throw IOException("Can't rename the temp file")
+            }
+        } catch (e: IOException) {
+            logger.warn(e) {
+                "writeToDisk(): failed_writing_snapshot:" +
+                        "\nfile=$fileName"
+            }
+
+            tempFile.delete()
+            return
+        }
+
+        diskEntries.put(fileName, file.length())
+            ?.also { diskSizeBytes -= it }
+        diskSizeBytes += file.length()
+
+        // Evict the least recently used entries.
+        val iterator = diskEntries.entries.iterator()
+        while (diskSizeBytes > maxDiskSizeBytes && iterator.hasNext()) {
+            val (evictedFileName, evictedSize) = iterator.next()
+            if (evictedFileName == fileName) {
+                break
+            }
+
+            iterator.remove()
+            File(directory, evictedFileName).delete()
+            diskSizeBytes -= evictedSize
+        }
+    }
+
+    private fun removeFromDisk(fileName: String) {
+        diskEntries.remove(fileName)
+            ?.also { diskSizeBytes -= it }
+        File(directory, fileName).delete()
+    }
+
+    private fun toBitmap(snapshot: Snapshot): Bitmap {
+        val width = snapshot.width
+        val height = snapshot.height
+        val bitmap = bitmapPool.obtain(width, height, BITMAP_OWNER)
+
+        synchronized(pixelsLock) {
+            val pixels = getPixelsBuffer(width * height)
+            for (i in snapshot.data.indices) {
+                pixels[i] = getGrayPixel(snapshot.data[i].toInt() and 0xFF)
+            }
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height)
+        }
+
+        return bitmap
+    }
+
+    /**
+     * @return the reused pixels buffer of at least the [size].
+     * Must be called while holding the [pixelsLock]
+     */
+    private fun getPixelsBuffer(size: Int): IntArray {
+        if (pixels.size < size) {
+            pixels = IntArray(size)
+        }
+        return pixels
+    }
+
+    private companion object {
+        private const val MAP_TILE_SIZE_PX = 512
+        private const val TEMP_FILE_EXTENSION = ".tmp"
+        private const val BITMAP_OWNER = "MapSnapshotCache"
+        private const val FILE_VERSION = 2
+
+        private fun getGrayPixel(brightness: Int): Int =
+            0xFF000000.toInt() or (brightness * 0x010101)
+    }
+}
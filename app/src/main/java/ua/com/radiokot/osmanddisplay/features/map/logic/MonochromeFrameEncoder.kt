@@ -0,0 +1,235 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import android.graphics.Bitmap
+import android.graphics.Rect
+
+/**
+ * Encodes grayscale frames into the display format:
+ * rows of 1-bit pixels packed 8 per byte, the most significant bit first,
+ * 1 for white and 0 for black.
+ *
+ * The pixel and the output buffers are reused between frames,
+ * hence the encoder must not be used concurrently.
+ */
+class MonochromeFrameEncoder {
+    private var pixels = IntArray(0)
+    private var output = ByteArray(0)
+
+    /**
+     * @param frame grayscale bitmap to encode
+     *
+     * @return encoded frame, which is backed by the internal buffer
+     * and stays valid until the next [encode] call. Copy it to keep.
+     */
+    fun encode(frame: Bitmap): ByteArray {
+        val width = frame.width
+        val height = frame.height
+
+        val pixelCount = width * height
+        if (pixels.size != pixelCount) {
+            pixels = IntArray(pixelCount)
+        }
+        // A single JNI call for the whole frame instead of a call per pixel.
+        frame.getPixels(pixels, 0, width, 0, 0, width, height)
+
+        val outputSize = getEncodedSize(width, height)
+        if (output.size != outputSize) {
+            output = ByteArray(outputSize)
+        }
+
+        encode(pixels, width, height, output)
+
+        return output
+    }
+
+    /**
+     * Crops the [frame], scales the crop to the given size averaging the covered pixels
+     * and encodes it, all in a single pass.
+     *
+     * @param frame grayscale bitmap to encode
+     * @param cropRect region of the [frame] to encode
+     *
+     * @return encoded frame of the given size, which is backed by the internal buffer
+     * and stays valid until the next [encode] call. Copy it to keep.
+     *
+     * @see encodeScaled
+     */
+    fun encodeScaled(
+        frame: Bitmap,
+        cropRect: Rect,
+        outputWidth: Int,
+        outputHeight: Int,
+    ): ByteArray {
+        val width = cropRect.width()
+        val height = cropRect.height()
+
+        val pixelCount = width * height
+        if (pixels.size != pixelCount) {
+            pixels = IntArray(pixelCount)
+        }
+        frame.getPixels(pixels, 0, width, cropRect.left, cropRect.top, width, height)
+
+        val outputSize = getEncodedSize(outputWidth, outputHeight)
+        if (output.size != outputSize) {
+            output = ByteArray(outputSize)
+        }
+
+        encodeScaled(pixels, width, height, outputWidth, outputHeight, output)
+
+        return output
+    }
+
+    companion object {
+        /**
+         * Output bit masks for the pixel position within a byte.
+         */
+        private val PIXEL_BIT_MASKS = intArrayOf(
+            0x80, 0x40, 0x20, 0x10, 0x08, 0x04, 0x02, 0x01
+        )
+
+        /**
+         * In a grayscale pixel all RGB bytes are equal.
+         * 8th bit of blue flips at 128, so it is a 50% white threshold.
+         */
+        private const val WHITE_THRESHOLD_MASK = 0x80
+
+        private const val WHITE = 0xFFFFFFFF.toInt()
+        private const val BLACK = 0xFF000000.toInt()
+
+        /**
+         * @return size of the encoded frame in bytes, where each row
+         * is padded to the whole byte.
+         */
+        fun getEncodedSize(width: Int, height: Int): Int =
+            (width + 7) / 8 * height
+
+        /**
+         * Packs row-major ARGB [pixels] of the frame into the [output].
+         *
+         * @param output buffer of at least [getEncodedSize] bytes.
+         * Its content is overwritten
+         */
+        fun encode(
+            pixels: IntArray,
+            width: Int,
+            height: Int,
+            output: ByteArray,
+        ) {
+            val bytesWidth = (width + 7) / 8
+            var outputIndex = 0
+
+            for (y in 0 until height) {
+                val rowOffset = y * width
+                var x = 0
+
+                repeat(bytesWidth) {
+                    val byteEndX = minOf(x + 8, width)
+                    var packed = 0
+                    var bit = 0
+
+                    while (x < byteEndX) {
+                        if (pixels[rowOffset + x] and WHITE_THRESHOLD_MASK != 0) {
+                            packed = packed or PIXEL_BIT_MASKS[bit]
+                        }
+                        bit++
+                        x++
+                    }
+
+                    output[outputIndex++] = packed.toByte()
+                }
+            }
+        }
+
+        /**
+         * Scales row-major grayscale ARGB [pixels] of the frame to the output size
+         * and packs them into the [output].
+         * Each output pixel is white if the average brightness of the frame pixels
+         * it covers is at least 50%, so thin lines survive downscaling
+         * better than with the nearest neighbour.
+         *
+         * @param output buffer of at least [getEncodedSize] bytes of the output size.
+         * Its content is overwritten
+         */
+        fun encodeScaled(
+            pixels: IntArray,
+            width: Int,
+            height: Int,
+            outputWidth: Int,
+            outputHeight: Int,
+            output: ByteArray,
+        ) {
+            // Frame pixel ranges covered by the output columns and rows.
+            // When upscaling, an output pixel covers the nearest frame pixel.
+            val columnStarts = IntArray(outputWidth) { it * width / outputWidth }
+            val columnEnds = IntArray(outputWidth) {
+                maxOf(columnStarts[it] + 1, (it + 1) * width / outputWidth)
+            }
+
+            val bytesWidth = (outputWidth + 7) / 8
+            var outputIndex = 0
+
+            for (outputY in 0 until outputHeight) {
+                val rowStart = outputY * height / outputHeight
+                val rowEnd = maxOf(rowStart + 1, (outputY + 1) * height / outputHeight)
+                var outputX = 0
+
+                repeat(bytesWidth) {
+                    val byteEndX = minOf(outputX + 8, outputWidth)
+                    var packed = 0
+                    var bit = 0
+
+                    while (outputX < byteEndX) {
+                        val columnStart = columnStarts[outputX]
+                        val columnEnd = columnEnds[outputX]
+                        var brightnessSum = 0
+
+                        for (y in rowStart until rowEnd) {
+                            val rowOffset = y * width
+                            for (x in columnStart until columnEnd) {
+                                // In a grayscale pixel all RGB bytes are equal.
+                                brightnessSum += pixels[rowOffset + x] and 0xFF
+                            }
+                        }
+
+                        val coveredCount = (rowEnd - rowStart) * (columnEnd - columnStart)
+                        if (brightnessSum >= WHITE_THRESHOLD_MASK * coveredCount) {
+                            packed = packed or PIXEL_BIT_MASKS[bit]
+                        }
+                        bit++
+                        outputX++
+                    }
+
+                    output[outputIndex++] = packed.toByte()
+                }
+            }
+        }
+
+        /**
+         * Unpacks the [encoded] frame into row-major black and white ARGB [pixels].
+         *
+         * @param pixels buffer of at least [width] * [height] pixels.
+         * Its content is overwritten
+         */
+        fun decode(
+            encoded: ByteArray,
+            width: Int,
+            height: Int,
+            pixels: IntArray,
+        ) {
+            val bytesWidth = (width + 7) / 8
+
+            for (y in 0 until height) {
+                val rowOffset = y * width
+                val encodedRowOffset = y * bytesWidth
+
+                for (x in 0 until width) {
+                    pixels[rowOffset + x] =
+                        if (encoded[encodedRowOffset + x / 8].toInt() and PIXEL_BIT_MASKS[x % 8] != 0)
+                            WHITE
+                        else
+                            BLACK
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+/**
+ * Compresses encoded frames with PackBits run-length encoding,
+ * which suits well the long white and black runs of map frames.
+ *
+ * Each packet starts with a signed header byte `n`:
+ * - 0..127 – the next `n + 1` bytes are taken literally
+ * - -127..-1 – the next byte is repeated `1 - n` times
+ *
+ * The output is split into chunks of whole packets,
+ * so each chunk can be unpacked on its own.
+ */
+object PackBitsCompressor {
+    private const val MAX_RUN_LENGTH = 128
+    private const val MAX_LITERAL_LENGTH = 128
+
+    /**
+     * @param data data to compress
+     * @param maxChunkSize max size of a single output chunk, at least 2 bytes
+     *
+     * @return chunks of whole packets, each of which is not bigger than [maxChunkSize]
+     */
+    fun compress(
+        data: ByteArray,
+        maxChunkSize: Int,
+    ): List<ByteArray> {
+        require(maxChunkSize >= 2) {
+            "Chunk must fit at least a 2 byte packet"
+        }
+
+        val maxLiteralLength = minOf(MAX_LITERAL_LENGTH, maxChunkSize - 1)
+        val chunks = mutableListOf<ByteArray>()
+        val chunk = ByteArray(maxChunkSize)
+        var chunkSize = 0
+
+        fun ensureChunkSpace(packetSize: Int) {
+            if (chunkSize + packetSize > maxChunkSize) {
+                chunks.add(chunk.copyOf(chunkSize))
+                chunkSize = 0
+            }
+        }
+
+        var i = 0
+        while (i < data.size) {
+            val runLength = getRunLength(data, i, MAX_RUN_LENGTH)
+
+            if (runLength >= 2) {
+                ensureChunkSpace(2)
+                chunk[chunkSize++] = (1 - runLength).toByte()
+                chunk[chunkSize++] = data[i]
+                i += runLength
+            } else {
+                val literalStart = i
+                i++
+
+                // Extend the literal until a run worth a separate packet begins.
+                while (i < data.size
+                    && i - literalStart < maxLiteralLength
+                    && getRunLength(data, i, 3) < 3
+                ) {
+                    i++
+                }
+
+                val literalLength = i - literalStart
+                ensureChunkSpace(literalLength + 1)
+                chunk[chunkSize++] = (literalLength - 1).toByte()
+                data.copyInto(chunk, chunkSize, literalStart, i)
+                chunkSize += literalLength
+            }
+        }
+
+        if (chunkSize > 0) {
+            chunks.add(chunk.copyOf(chunkSize))
+        }
+
+        return chunks
+    }
+
+    private fun getRunLength(
+        data: ByteArray,
+        start: Int,
+        maxLength: Int,
+    ): Int {
+        val value = data[start]
+        val end = minOf(data.size, start + maxLength)
+        var i = start + 1
+        while (i < end && data[i] == value) {
+            i++
+        }
+        return i - start
+    }
+}
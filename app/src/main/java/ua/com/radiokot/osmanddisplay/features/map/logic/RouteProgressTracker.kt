@@ -0,0 +1,166 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import io.reactivex.Observable
+import io.reactivex.subjects.PublishSubject
+import io.reactivex.subjects.Subject
+import ua.com.radiokot.osmanddisplay.base.extension.kLogger
+import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackDistanceIndex
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry
+
+/**
+ * Follows the rider along the track and tells when they leave it or get back.
+ *
+ * The current segment is tracked incrementally by the [trackMatcher],
+ * which only searches the track through its spatial index when local tracking fails.
+ * To not flap on the GPS noise, the state has hysteresis both by the distance,
+ * as getting back requires being closer to the track than the matching distance,
+ * and by the count of the locations in a row suggesting the change.
+ *
+ * The state is unknown until the first locations tell it the same way,
+ * which is not reported as an event, as nothing has changed.
+ *
+ * @param trackMatcher matcher which max distance is the off route threshold
+ * @param distanceIndex distance index of the track
+ * @param backOnRouteDistanceM max distance from the track at which the location
+ * suggests getting back on route
+ * @param offRouteLocationCount count of the locations in a row to consider the rider off route
+ * @param backOnRouteLocationCount count of the locations in a row to consider the rider back on route
+ */
+class RouteProgressTracker(
+    private val trackMatcher: TrackMatcher,
+    private val distanceIndex: TrackDistanceIndex,
+    private val backOnRouteDistanceM: Double = 15.0,
+    private val offRouteLocationCount: Int = 3,
+    private val backOnRouteLocationCount: Int = 2,
+) {
+    enum class State {
+        /**
+         * There were not enough locations to tell yet.
+         */
+        UNKNOWN,
+        ON_ROUTE,
+        OFF_ROUTE,
+        ;
+    }
+
+    enum class Event {
+        OFF_ROUTE,
+        BACK_ON_ROUTE,
+        ;
+    }
+
+    private val logger = kLogger("RouteProgressTracker")
+
+    private val eventsSubject: Subject<Event> = PublishSubject.create()
+    val events: Observable<Event> = eventsSubject
+
+    var state: State = State.UNKNOWN
+        @Synchronized get
+        private set
+
+    val isOnRoute: Boolean
+        get() = state == State.ON_ROUTE
+
+    /**
+     * Progress of the last location on route, or null if the rider is off route.
+     */
+    var progress: TrackDistanceIndex.Progress? = null
+        @Synchronized get
+        private set
+
+    private var stateChangeCandidate: State? = null
+    private var stateChangeCandidateCount = 0
+
+    /**
+     * @return the [location] snapped to the track if the rider is on route,
+     * the [location] itself otherwise
+     */
+    fun onLocation(location: LocationData): LocationData {
+        val event: Event?
+        val result: LocationData
+
+        synchronized(this) {
+            val matchedLocation = trackMatcher.match(location)
+            val projection = trackMatcher.matchedProjection
+
+            event = updateState(projection)
+
+            if (!isOnRoute) {
+                progress = null
+            } else if (projection != null) {
+                progress = distanceIndex.getProgress(projection)
+            }
+            // Otherwise keep the last progress, as the rider is not off route yet.
+
+            result =
+                if (isOnRoute && matchedLocation != null)
+                    matchedLocation
+                else
+                    location
+        }
+
+        if (event != null) {
+            logger.debug {
+                "onLocation(): route_event:" +
+                        "\nevent=$event," +
+                        "\nlocation=$location"
+            }
+
+            eventsSubject.onNext(event)
+        }
+
+        return result
+    }
+
+    /**
+     * @param projection projection of the location onto the track if it is matched
+     *
+     * @return event if the state has changed
+     */
+    private fun updateState(projection: TrackGeometry.Projection?): Event? {
+        val suggestedState = when {
+            projection == null ->
+                State.OFF_ROUTE
+            projection.distanceM <= backOnRouteDistanceM ->
+                State.ON_ROUTE
+            // Matched, but neither close enough to be on route nor far enough to be off it.
+            else ->
+                null
+        }
+
+        if (suggestedState == null || suggestedState == state) {
+            stateChangeCandidate = null
+            stateChangeCandidateCount = 0
+            return null
+        }
+
+        if (suggestedState != stateChangeCandidate) {
+            stateChangeCandidate = suggestedState
+            stateChangeCandidateCount = 0
+        }
+        stateChangeCandidateCount++
+        val requiredCount =
+            if (suggestedState == State.ON_ROUTE)
+                backOnRouteLocationCount
+            else
+                offRouteLocationCount
+        if (stateChangeCandidateCount < requiredCount) {
+            return null
+        }
+
+        val previousState = state
+        state = suggestedState
+        stateChangeCandidate = null
+        stateChangeCandidateCount = 0
+
+        return when {
+            previousState == State.UNKNOWN ->
+                null
+            state == State.ON_ROUTE ->
+                Event.BACK_ON_ROUTE
+            else ->
+                Event.OFF_ROUTE
+        }
+    }
+}
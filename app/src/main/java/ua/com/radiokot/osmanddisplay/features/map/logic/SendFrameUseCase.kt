@@ -1,33 +1,66 @@
 package ua.com.radiokot.osmanddisplay.features.map.logic
 
-import android.graphics.Bitmap
 import io.reactivex.Completable
+import io.reactivex.Observable
 import io.reactivex.Single
-import io.reactivex.rxkotlin.toSingle
-import io.reactivex.schedulers.Schedulers
+import ua.com.radiokot.osmanddisplay.base.extension.kLogger
 import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.DisplayCommandSender
+import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.DisplayPacingController
 import ua.com.radiokot.osmanddisplay.features.broadcasting.model.DisplayCommand
-import java.util.concurrent.TimeUnit
-import kotlin.experimental.or
+import ua.com.radiokot.osmanddisplay.features.map.model.MonochromeFrame
 
 /**
- * Encodes and sends the given grayscale frame to the display.
+ * Sends the given packed frame to the display,
+ * unless the [duplicateFrameFilter] finds it looking the same as the shown one.
+ * The frame is sent either raw, compressed with PackBits or,
+ * if the [frameDeltaTracker] knows the frame currently shown,
+ * as changed row bands – whichever takes less bytes including the command headers.
+ * Compressed frames and changed row bands are only sent if the display firmware supports them.
  *
- * @param frame grayscale bitmap of the required size. Recycle manually.
+ * @param frame frame of the required size packed in the display format
+ * @param frameDeltaTracker tracker of the shown frame, which is updated once the frame is shown
+ * @param duplicateFrameFilter filter of the shown frame, which is updated once the frame is shown
+ * @param pacingController pacing controller of the same display as the [commandSender]
+ * @param isFrameDataAtSupported whether the display supports [DisplayCommand.FrameDataAt]
+ * @param isFrameDataPackBitsSupported whether the display supports [DisplayCommand.FrameDataPackBits]
  */
 class SendFrameUseCase(
-    private val frame: Bitmap,
+    private val frame: MonochromeFrame,
+    private val frameDeltaTracker: FrameDeltaTracker,
+    private val duplicateFrameFilter: DuplicateFrameFilter,
     private val commandSender: DisplayCommandSender,
+    private val pacingController: DisplayPacingController,
+    private val isFrameDataAtSupported: Boolean,
+    private val isFrameDataPackBitsSupported: Boolean,
 ) {
-    private lateinit var encodedFrame: ByteArray
+    private val logger = kLogger("SendFrameUC")
 
-    fun perform(): Completable {
-        return sendFramePrepare()
-            .flatMap {
-                getEncodedFrame()
+    private val encodedFrame: ByteArray = frame.data
+    private var maxCommandSize: Int = 0
+
+    /**
+     * @return true if the frame is sent, false if it is skipped as a duplicate
+     */
+    fun perform(): Single<Boolean> {
+        return Single.defer {
+            if (duplicateFrameFilter.isDuplicate(encodedFrame, frame.width)) {
+                logger.debug { "perform(): skipping_duplicate_frame" }
+
+                Single.just(false)
+            } else {
+                sendEncodedFrame()
+                    .toSingleDefault(true)
             }
+        }
+    }
+
+    private fun sendEncodedFrame(): Completable {
+        return getMaxCommandSize()
             .doOnSuccess {
-                encodedFrame = it
+                maxCommandSize = it
+            }
+            .flatMap {
+                sendFramePrepare()
             }
             .flatMap {
                 sendFrame()
@@ -35,57 +68,160 @@ class SendFrameUseCase(
             .flatMap {
                 sendFrameShow()
             }
+            .doOnSuccess {
+                frameDeltaTracker.onFrameShown(encodedFrame)
+                duplicateFrameFilter.onFrameShown(encodedFrame, frame.width)
+            }
+            .doOnError {
+                // Whatever is on the display now, it can't be used as a base.
+                frameDeltaTracker.reset()
+                duplicateFrameFilter.reset()
+            }
             .ignoreElement()
     }
 
+    private fun getMaxCommandSize(): Single<Int> =
+        commandSender.getMaxCommandSize()
+
     private fun sendFramePrepare(): Single<Boolean> =
-        commandSender
-            .send(DisplayCommand.FramePrepare)
-            // Delay required for the display initialization.
-            .delay(1000, TimeUnit.MILLISECONDS, Schedulers.io())
+        pacingController
+            // Waiting required for the display initialization.
+            .send(DisplayCommand.FramePrepare, DisplayPacingController.Operation.FRAME_PREPARE)
             .toSingleDefault(true)
 
-    private fun getEncodedFrame(): Single<ByteArray> = {
-        val bytesWidth =
-            if (frame.width % 8 == 0) frame.width / 8 else frame.width / 8 + 1
-        val bytesHeight = frame.height
-        val output = ByteArray(bytesWidth * bytesHeight)
-
-        (0 until frame.width).forEach { x ->
-            (0 until frame.height).forEach { y ->
-                // In a grayscale bitmap all RGB bytes are equal.
-                // 8th bit of blue flips at 128, so it is a 50% white threshold.
-                // If the pixel is white, the value is 0b10000000
-                val unshiftedBit = frame.getPixel(x, y) and 0x80
-
-                // Set the corresponding output bit by shifting
-                // the unshifted bit to the right according to the
-                // pixel X coordinate.
-                val outputByteIndex = x / 8 + y * bytesWidth
-                output[outputByteIndex] =
-                    output[outputByteIndex] or (unshiftedBit shr x % 8).toByte()
-            }
+    private fun sendFrame(): Single<Boolean> {
+        val wholeFrameChunkSize = getMaxDataSize(
+            headerSize = DisplayCommand.FrameData.HEADER_SIZE,
+            maxDataSize = DisplayCommand.FrameData.MAX_DATA_SIZE,
+        )
+        // Sizes of all the commands to send, including their headers.
+        val wholeFrameSize = encodedFrame.size +
+                DisplayCommand.FrameData.HEADER_SIZE *
+                ((encodedFrame.size + wholeFrameChunkSize - 1) / wholeFrameChunkSize)
+
+        val changedBandChunks =
+            if (isFrameDataAtSupported)
+                frameDeltaTracker
+                    .getChangedBands(encodedFrame, (frame.width + 7) / 8)
+                    ?.let(::getChangedBandChunks)
+            else
+                null
+        val changedBandsSize = changedBandChunks
+            ?.sumOf { it.last - it.first + 1 + DisplayCommand.FrameDataAt.HEADER_SIZE }
+            ?: Int.MAX_VALUE
+
+        val compressedFrameChunks =
+            if (isFrameDataPackBitsSupported)
+                PackBitsCompressor.compress(
+                    encodedFrame,
+                    getMaxDataSize(
+                        headerSize = DisplayCommand.FrameDataPackBits.HEADER_SIZE,
+                        maxDataSize = DisplayCommand.FrameDataPackBits.MAX_DATA_SIZE,
+                    )
+                )
+            else
+                null
+        val compressedFrameSize = compressedFrameChunks
+            ?.sumOf { it.size + DisplayCommand.FrameDataPackBits.HEADER_SIZE }
+            ?: Int.MAX_VALUE
+
+        logger.debug {
+            "sendFrame(): choosing_the_way:" +
+                    "\nwhole_size=$wholeFrameSize," +
+                    "\ncompressed_size=$compressedFrameSize," +
+                    "\nchanged_bands_size=$changedBandsSize," +
+                    "\nmax_command_size=$maxCommandSize"
+        }
+
+        return when {
+            changedBandChunks != null
+                    && changedBandsSize <= compressedFrameSize
+                    && changedBandsSize <= wholeFrameSize ->
+                sendChangedBands(changedBandChunks)
+
+            compressedFrameChunks != null
+                    && compressedFrameSize < wholeFrameSize ->
+                sendCompressedFrame(compressedFrameChunks)
+
+            else ->
+                sendWholeFrame(wholeFrameChunkSize)
+        }
+    }
+
+    private fun sendWholeFrame(chunkSize: Int): Single<Boolean> =
+        sendSequentially((encodedFrame.size + chunkSize - 1) / chunkSize) { i ->
+            val chunkStart = i * chunkSize
+
+            DisplayCommand.FrameData(
+                encodedFrame.copyOfRange(
+                    chunkStart,
+                    minOf(chunkStart + chunkSize, encodedFrame.size)
+                )
+            )
+        }
+
+    private fun sendCompressedFrame(chunks: List<ByteArray>): Single<Boolean> =
+        sendSequentially(chunks.size) { i ->
+            DisplayCommand.FrameDataPackBits(chunks[i])
         }
 
-        output
-    }.toSingle()
-
-    private fun sendFrame(): Single<Boolean> =
-        Completable.concat(
-            encodedFrame
-                .asIterable()
-                .chunked(16)
-                .map { dataChunk ->
-                    commandSender.send(DisplayCommand.FrameData(dataChunk.toByteArray()))
-                        .delay(2, TimeUnit.MILLISECONDS, Schedulers.io())
-                }
+    /**
+     * @return the [bands] split into ranges fitting a single [DisplayCommand.FrameDataAt]
+     */
+    private fun getChangedBandChunks(bands: List<IntRange>): List<IntRange> {
+        val chunkSize = getMaxDataSize(
+            headerSize = DisplayCommand.FrameDataAt.HEADER_SIZE,
+            maxDataSize = DisplayCommand.FrameDataAt.MAX_DATA_SIZE,
         )
+
+        return bands.flatMap { band ->
+            (band step chunkSize).map { chunkStart ->
+                chunkStart..minOf(chunkStart + chunkSize - 1, band.last)
+            }
+        }
+    }
+
+    private fun sendChangedBands(chunks: List<IntRange>): Single<Boolean> =
+        sendSequentially(chunks.size) { i ->
+            val chunk = chunks[i]
+
+            DisplayCommand.FrameDataAt(
+                offset = chunk.first,
+                data = encodedFrame.copyOfRange(chunk.first, chunk.last + 1),
+            )
+        }
+
+    /**
+     * Sends [count] commands in order, creating each of them right before sending.
+     * Up to [MAX_QUEUED_COMMANDS] commands are queued to the sender at once,
+     * so the next write doesn't wait for the previous one to be confirmed.
+     */
+    private fun sendSequentially(
+        count: Int,
+        getCommand: (index: Int) -> DisplayCommand,
+    ): Single<Boolean> =
+        Observable.range(0, count)
+            .concatMapEager({ i ->
+                commandSender
+                    .send(getCommand(i))
+                    .toObservable<Unit>()
+            }, MAX_QUEUED_COMMANDS, 1)
+            .ignoreElements()
             .toSingleDefault(true)
 
+    private fun getMaxDataSize(
+        headerSize: Int,
+        maxDataSize: Int,
+    ): Int =
+        minOf(maxCommandSize - headerSize, maxDataSize)
+
     private fun sendFrameShow(): Single<Boolean> =
-        commandSender
-            .send(DisplayCommand.FrameShow)
-            // Delay required for the frame to be shown.
-            .delay(2200, TimeUnit.MILLISECONDS, Schedulers.io())
+        pacingController
+            // Waiting required for the frame to be shown.
+            .send(DisplayCommand.FrameShow, DisplayPacingController.Operation.FRAME_SHOW)
             .toSingleDefault(true)
-}
\ No newline at end of file
+
+    private companion object {
+        private const val MAX_QUEUED_COMMANDS = 8
+    }
+}
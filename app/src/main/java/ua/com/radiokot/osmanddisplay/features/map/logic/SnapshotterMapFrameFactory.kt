@@ -4,23 +4,26 @@ import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
+import android.graphics.PorterDuff
+import android.graphics.PorterDuffXfermode
 import android.graphics.Rect
-import android.graphics.Typeface
 import android.text.Layout
 import android.text.StaticLayout
 import android.text.TextPaint
 import android.text.TextUtils
+import android.util.Size
 import com.mapbox.maps.CameraOptions
+import io.reactivex.Maybe
 import io.reactivex.Single
 import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.rxkotlin.toSingle
+import io.reactivex.schedulers.Schedulers
 import ua.com.radiokot.osmanddisplay.R
 import ua.com.radiokot.osmanddisplay.base.extension.kLogger
 import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import ua.com.radiokot.osmanddisplay.features.map.model.MonochromeFrame
 import java.io.IOException
-import java.text.DateFormat
-import java.util.Date
-import kotlin.math.roundToInt
+import kotlin.math.*
 
 /**
  * Composes map frames based on [FriendlySnapshotter] map snapshots.
@@ -28,75 +31,89 @@ import kotlin.math.roundToInt
  *
  * If there is something wrong with the snapshot, composes a frame with
  * the error message.
+ *
+ * Frames are packed in the display format right from the snapshots,
+ * intermediate bitmaps are obtained from the [bitmapPool].
+ *
+ * @param snapshotCache cache of the snapshots, if they are worth caching
+ * @param snapshotStyle identifier of the [snapshotter] style and overlays for the [snapshotCache]
+ * @param snapshotSizePx size of the [snapshotter] snapshots, not counting the pixel ratio
+ * @param snapshotPixelRatio pixel ratio of the [snapshotter] snapshots
+ * @param isNorthUpRendering if set, snapshots are taken north-up and reused
+ * for the frames nearby, which are rotated and cropped locally.
+ * The [snapshotter] size must fit the frame at any bearing with a margin to move within
  */
 class SnapshotterMapFrameFactory(
     private val snapshotter: FriendlySnapshotter,
-    private val locationMarker: Bitmap,
+    private val overlayPainter: MapFrameOverlayPainter,
+    private val bitmapPool: FrameBitmapPool,
     private val frameWidthPx: Int,
     private val frameHeightPx: Int,
-    private val bearingLineColor: Int,
-    private val timeFormat: DateFormat,
-    private val timeColor: Int,
-    private val timeBackgroundColor: Int,
+    private val snapshotCache: MapSnapshotCache?,
+    private val snapshotStyle: String,
+    private val snapshotSizePx: Int,
+    private val snapshotPixelRatio: Double,
+    private val isNorthUpRendering: Boolean,
 ) : MapFrameFactory {
     private val logger = kLogger("SnapshotterMFF")
+    private val frameEncoder = MonochromeFrameEncoder()
 
-    private val bearingLinePaint = Paint().apply {
-        color = bearingLineColor
-        strokeWidth = BEARING_LINE_WIDTH
-    }
-    private val timePaint = Paint().apply {
-        typeface = Typeface.DEFAULT_BOLD
-        textSize = TIME_TEXT_SIZE
-        style = Paint.Style.FILL
-        color = timeColor
-    }
-    private val timeHeight = timePaint.fontMetrics.bottom - timePaint.fontMetrics.top
-    private val timeDescent = timePaint.fontMetrics.descent
-    private val timeBackgroundPaint = Paint().apply {
-        style = Paint.Style.FILL
-        color = timeBackgroundColor
-    }
-
-    private data class SnapshotResult(
-        val error: Throwable?,
-        val snapshot: Bitmap?,
+    /**
+     * North-up snapshot taken at the [center] and reused for the frames nearby.
+     */
+    private class NorthUpSnapshot(
+        val bitmap: Bitmap,
+        val center: LocationData,
+        val zoom: Double,
     )
 
+    private var northUpSnapshot: NorthUpSnapshot? = null
+    private val rotationPaint = Paint().apply {
+        // Replace the destination content, as pooled bitmaps are dirty.
+        xfermode = PorterDuffXfermode(PorterDuff.Mode.SRC)
+        isFilterBitmap = true
+    }
+
     override fun composeFrame(
         location: LocationData,
         cameraZoom: Double,
         postScale: Double,
-    ): Single<Bitmap> {
-        return waitForSnapshotterSetup()
-            .flatMap {
-                getMapSnapshot(location, cameraZoom)
-                    .map { snapshot ->
-                        SnapshotResult(null, snapshot)
+        invertOverlays: Boolean,
+    ): Single<MonochromeFrame> {
+        val frameComposing =
+            if (isNorthUpRendering)
+                getNorthUpSnapshot(location, cameraZoom, postScale)
+                    .flatMap { northUpSnapshot ->
+                        composeNorthUpFrame(
+                            northUpSnapshot = northUpSnapshot,
+                            location = location,
+                            postScale = postScale,
+                            invertOverlays = invertOverlays,
+                        )
                     }
-            }
-            .onErrorReturn { error ->
-                SnapshotResult(error, null)
-            }
-            .flatMap { (error, snapshot) ->
-                if (error == null && snapshot != null) {
-                    composeFrame(
-                        snapshot = snapshot,
-                        bearing = location.bearing,
-                        postScale = postScale,
-                    )
-                } else {
-                    if (error is IOException) {
-                        composeErrorFrame(snapshotter.context.getString(R.string.error_failed_to_load_tile))
-                    } else {
-                        composeErrorFrame(
-                            error?.message
-                                ?: snapshotter.context.getString(
-                                    R.string.template_error_occurred,
-                                    error.toString()
-                                )
+            else
+                getMapSnapshotCachedIfPossible(location, cameraZoom)
+                    .flatMap { snapshot ->
+                        composeFrame(
+                            snapshot = snapshot,
+                            bearing = location.bearing,
+                            postScale = postScale,
+                            invertOverlays = invertOverlays,
                         )
                     }
+
+        return frameComposing
+            .onErrorResumeNext { error ->
+                if (error is IOException) {
+                    composeErrorFrame(snapshotter.context.getString(R.string.error_failed_to_load_tile))
+                } else {
+                    composeErrorFrame(
+                        error.message
+                            ?: snapshotter.context.getString(
+                                R.string.template_error_occurred,
+                                error.toString()
+                            )
+                    )
                 }
             }
     }
@@ -150,6 +167,51 @@ class SnapshotterMapFrameFactory(
         // Important for Snapshotter.
         .subscribeOn(AndroidSchedulers.mainThread())
 
+    private fun getMapSnapshotCachedIfPossible(
+        location: LocationData,
+        zoom: Double,
+    ): Single<Bitmap> {
+        val snapshotCache = this.snapshotCache
+            ?: return waitForSnapshotterSetup()
+                .flatMap { getMapSnapshot(location, zoom) }
+
+        val snapshotKey = getSnapshotKey(snapshotCache, location, zoom)
+
+        return Maybe.fromCallable<Bitmap> { snapshotCache.get(snapshotKey) }
+            .doOnSuccess {
+                logger.debug {
+                    "getMapSnapshotCachedIfPossible(): got_cached_snapshot:" +
+                            "\nkey=$snapshotKey"
+                }
+            }
+            .switchIfEmpty(
+                waitForSnapshotterSetup()
+                    .flatMap {
+                        // The cached snapshot must match the quantized location.
+                        getMapSnapshot(snapshotKey.location, zoom)
+                    }
+                    .observeOn(Schedulers.io())
+                    .doOnSuccess { snapshot ->
+                        snapshotCache.put(snapshotKey, snapshot)
+                    }
+            )
+            .subscribeOn(Schedulers.io())
+    }
+
+    private fun getSnapshotKey(
+        snapshotCache: MapSnapshotCache,
+        location: LocationData,
+        zoom: Double,
+    ): MapSnapshotCache.Key =
+        snapshotCache.getKey(
+            location = location,
+            zoom = zoom,
+            style = snapshotStyle,
+            widthPx = snapshotSizePx,
+            heightPx = snapshotSizePx,
+            pixelRatio = snapshotPixelRatio,
+        )
+
     private fun getMapSnapshot(
         location: LocationData,
         zoom: Double,
@@ -158,7 +220,8 @@ class SnapshotterMapFrameFactory(
             CameraOptions.Builder()
                 .center(location.toPoint())
                 .zoom(zoom)
-                .bearing(location.bearing)
+                // Null bearing keeps the previous one.
+                .bearing(location.bearing ?: 0.0)
                 .build()
         )
 
@@ -179,7 +242,8 @@ class SnapshotterMapFrameFactory(
         snapshot: Bitmap,
         bearing: Double?,
         postScale: Double,
-    ): Single<Bitmap> = {
+        invertOverlays: Boolean,
+    ): Single<MonochromeFrame> = {
         // The lower the post scale, the bigger area of the snapshot
         // we have to fit into the frame
         val scaledFrameWidth = (frameWidthPx / postScale).toInt()
@@ -193,72 +257,199 @@ class SnapshotterMapFrameFactory(
             else
                 0
 
-        // Create a frame which is bigger than the required
+        // Crop a frame which is bigger than the required
         // frame size to fit more area.
-        val scaledFrame = Bitmap.createBitmap(
-            snapshot,
-            (snapshot.width - scaledFrameWidth) / 2,
-            (snapshot.height - scaledFrameHeight) / 2 - centerYOffset,
-            scaledFrameWidth,
-            scaledFrameHeight
+        val cropLeft = (snapshot.width - scaledFrameWidth) / 2
+        val cropTop = (snapshot.height - scaledFrameHeight) / 2 - centerYOffset
+        val cropRect = Rect(
+            cropLeft,
+            cropTop,
+            cropLeft + scaledFrameWidth,
+            cropTop + scaledFrameHeight
         )
-        snapshot.recycle()
-
-        val canvas = Canvas(scaledFrame)
-        val locationX = canvas.width / 2f
-        val locationY = canvas.height / 2f + centerYOffset
-
-        // Draw the location marker.
-        canvas.drawBitmap(
-            locationMarker,
-            locationX - locationMarker.width / 2f,
-            locationY - locationMarker.height / 2f,
-            null
+
+        // Draw the overlays right on the snapshot, as it is not needed afterwards.
+        val canvas = Canvas(snapshot)
+        canvas.translate(cropLeft.toFloat(), cropTop.toFloat())
+        overlayPainter.draw(
+            canvas = canvas,
+            frameWidth = scaledFrameWidth,
+            frameHeight = scaledFrameHeight,
+            locationX = scaledFrameWidth / 2f,
+            locationY = scaledFrameHeight / 2f + centerYOffset,
+            hasBearing = bearing != null,
+            isInverted = invertOverlays,
         )
 
-        // Draw the bearing indicator on the marker
-        // as a line pointing from the center.
-        if (bearing != null) {
-            canvas.drawLine(
-                locationX,
-                locationY,
-                locationX,
-                locationY - BEARING_CIRCLE_RADIUS,
-                bearingLinePaint,
-            )
+        toFrame(snapshot, cropRect)
+            .also { bitmapPool.release(snapshot) }
+    }.toSingle()
+
+    /**
+     * @return the existing north-up snapshot if the frame for the [location]
+     * fits into it at any bearing, otherwise a new one taken around the [location]
+     */
+    private fun getNorthUpSnapshot(
+        location: LocationData,
+        zoom: Double,
+        postScale: Double,
+    ): Single<NorthUpSnapshot> {
+        val existingSnapshot = synchronized(this) {
+            northUpSnapshot?.takeIf { it.zoom == zoom && isInSafeZone(it, location, postScale) }
+        }
+        if (existingSnapshot != null) {
+            return Single.just(existingSnapshot)
         }
 
-        // Draw the time in 12h format, to be shorter.
-        val time = timeFormat.format(Date())
-        val timeWidth = timePaint.measureText(time)
-        val timeBackgroundRect =
-            Rect(
-                scaledFrame.width - timeWidth.toInt(),
-                scaledFrame.height - timeHeight.toInt(),
-                scaledFrame.width,
-                scaledFrame.height
-            )
-        canvas.drawRect(timeBackgroundRect, timeBackgroundPaint)
-        canvas.drawText(
-            time,
-            timeBackgroundRect.left.toFloat(),
-            timeBackgroundRect.bottom - timeDescent,
-            timePaint
+        val northUpLocation = location.copy(bearing = null)
+        // With the cache, the snapshot is taken at the quantized location.
+        val center = snapshotCache
+            ?.let { getSnapshotKey(it, northUpLocation, zoom) }
+            ?.location
+            ?: northUpLocation
+
+        return getMapSnapshotCachedIfPossible(center, zoom)
+            .map { bitmap ->
+                bitmapPool.handOff(bitmap, BITMAP_OWNER)
+
+                val newSnapshot = NorthUpSnapshot(
+                    bitmap = bitmap,
+                    center = center,
+                    zoom = zoom,
+                )
+
+                synchronized(this) {
+                    northUpSnapshot?.also { bitmapPool.release(it.bitmap) }
+                    northUpSnapshot = newSnapshot
+                }
+
+                logger.debug {
+                    "getNorthUpSnapshot(): got_new_snapshot:" +
+                            "\ncenter=$center"
+                }
+
+                newSnapshot
+            }
+    }
+
+    /**
+     * @return true if the frame area around the [location] stays inside the [northUpSnapshot]
+     * whatever the bearing is
+     */
+    private fun isInSafeZone(
+        northUpSnapshot: NorthUpSnapshot,
+        location: LocationData,
+        postScale: Double,
+    ): Boolean {
+        val scaledFrameWidth = frameWidthPx / postScale
+        val scaledFrameHeight = frameHeightPx / postScale
+        // The farthest frame corner from the location, which is shifted down with a bearing.
+        val frameRadius = hypot(scaledFrameWidth / 2, scaledFrameHeight / 2 * 1.65)
+        val safeZoneHalfSize =
+            min(northUpSnapshot.bitmap.width, northUpSnapshot.bitmap.height) / 2 - frameRadius
+        val (offsetX, offsetY) = getOffsetFromCenterPx(northUpSnapshot, location)
+
+        return abs(offsetX) <= safeZoneHalfSize && abs(offsetY) <= safeZoneHalfSize
+    }
+
+    /**
+     * @return position of the [location] relative to the [northUpSnapshot] center
+     * in the snapshot pixels
+     */
+    private fun getOffsetFromCenterPx(
+        northUpSnapshot: NorthUpSnapshot,
+        location: LocationData,
+    ): Pair<Double, Double> {
+        val pixelRatio = northUpSnapshot.bitmap.width.toDouble() / snapshotSizePx
+        val worldSizePx = MAP_TILE_SIZE_PX * 2.0.pow(northUpSnapshot.zoom) * pixelRatio
+
+        return Pair(
+            (getUnitX(location.lng) - getUnitX(northUpSnapshot.center.lng)) * worldSizePx,
+            (getUnitY(location.lat) - getUnitY(northUpSnapshot.center.lat)) * worldSizePx,
         )
+    }
+
+    private fun composeNorthUpFrame(
+        northUpSnapshot: NorthUpSnapshot,
+        location: LocationData,
+        postScale: Double,
+        invertOverlays: Boolean,
+    ): Single<MonochromeFrame> = {
+        // The lower the post scale, the bigger area of the snapshot
+        // we have to fit into the frame
+        val scaledFrameWidth = (frameWidthPx / postScale).toInt()
+        val scaledFrameHeight = (frameHeightPx / postScale).toInt()
+
+        // If there is a bearing, offset the center to see
+        // more upcoming path.
+        val centerYOffset =
+            if (location.bearing != null)
+                (scaledFrameHeight * 0.65 / 2).roundToInt()
+            else
+                0
+        val locationX = scaledFrameWidth / 2f
+        val locationY = scaledFrameHeight / 2f + centerYOffset
+
+        val scaledFrame = bitmapPool.obtain(scaledFrameWidth, scaledFrameHeight, BITMAP_OWNER)
 
-        // Return the result in the required size.
-        Bitmap.createScaledBitmap(
-            scaledFrame,
-            frameWidthPx,
-            frameHeightPx,
-            false
+        synchronized(this) {
+            val (offsetX, offsetY) = getOffsetFromCenterPx(northUpSnapshot, location)
+            val snapshot = northUpSnapshot.bitmap
+
+            // Rotate the snapshot around the location, so the bearing points up.
+            Canvas(scaledFrame).apply {
+                translate(locationX, locationY)
+                rotate(-(location.bearing ?: 0.0).toFloat())
+                translate(
+                    -(snapshot.width / 2f + offsetX.toFloat()),
+                    -(snapshot.height / 2f + offsetY.toFloat())
+                )
+                drawBitmap(snapshot, 0f, 0f, rotationPaint)
+            }
+        }
+
+        overlayPainter.draw(
+            canvas = Canvas(scaledFrame),
+            frameWidth = scaledFrameWidth,
+            frameHeight = scaledFrameHeight,
+            locationX = locationX,
+            locationY = locationY,
+            hasBearing = location.bearing != null,
+            isInverted = invertOverlays,
         )
-            .also { scaledFrame.recycle() }
+
+        toFrame(scaledFrame, Rect(0, 0, scaledFrameWidth, scaledFrameHeight))
+            .also { bitmapPool.release(scaledFrame) }
     }.toSingle()
 
-    private fun composeErrorFrame(message: String): Single<Bitmap> = {
-        val bitmap =
-            Bitmap.createBitmap(frameWidthPx, frameHeightPx, Bitmap.Config.ARGB_8888, false)
+    /**
+     * Crops, scales and thresholds the [source] to the required frame size at once.
+     * The [source] is not released.
+     */
+    private fun toFrame(
+        source: Bitmap,
+        cropRect: Rect,
+    ): MonochromeFrame = synchronized(frameEncoder) {
+        MonochromeFrame(
+            width = frameWidthPx,
+            height = frameHeightPx,
+            data = frameEncoder
+                .encodeScaled(
+                    frame = source,
+                    cropRect = cropRect,
+                    outputWidth = frameWidthPx,
+                    outputHeight = frameHeightPx,
+                )
+                .copyOf(),
+        )
+    }
+
+    override fun getTimeCornerSize(postScale: Double): Size =
+        overlayPainter.getTimeCornerSize(postScale)
+
+    private fun composeErrorFrame(message: String): Single<MonochromeFrame> = {
+        val bitmap = bitmapPool.obtain(frameWidthPx, frameHeightPx, BITMAP_OWNER)
+        bitmap.eraseColor(Color.TRANSPARENT)
         val canvas = Canvas(bitmap)
 
         val textPaint = TextPaint(Paint()).apply {
@@ -285,17 +476,30 @@ class SnapshotterMapFrameFactory(
         canvas.translate(offsetHorizontal, offsetTop)
         textLayout.draw(canvas)
 
-        bitmap
+        toFrame(bitmap, Rect(0, 0, frameWidthPx, frameHeightPx))
+            .also { bitmapPool.release(bitmap) }
     }.toSingle()
 
     override fun destroy() {
         snapshotter.cancel()
         snapshotter.destroy()
+
+        synchronized(this) {
+            northUpSnapshot?.also { bitmapPool.release(it.bitmap) }
+            northUpSnapshot = null
+        }
     }
 
     private companion object {
-        private const val BEARING_CIRCLE_RADIUS = 10f
-        private const val BEARING_LINE_WIDTH = 5f
-        private const val TIME_TEXT_SIZE = 21f
+        private const val BITMAP_OWNER = "SnapshotterMapFrameFactory"
+        private const val MAP_TILE_SIZE_PX = 512
+
+        private fun getUnitX(lng: Double): Double =
+            (lng + 180) / 360
+
+        private fun getUnitY(lat: Double): Double {
+            val latRad = Math.toRadians(lat)
+            return (1 - ln(tan(latRad) + 1 / cos(latRad)) / PI) / 2
+        }
     }
 }
@@ -0,0 +1,284 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import com.mapbox.geojson.Point
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry
+import kotlin.math.*
+
+/**
+ * Rasterizes the track line with direction arrows and the POI
+ * straight into a 1-bit frame in the [MonochromeFrameEncoder] format,
+ * without any map rendering.
+ *
+ * The projection is the same Web Mercator the map uses,
+ * so at the same [pixelRatio] the scale matches the map frames of the same zoom.
+ * The projection buffers are reused between frames,
+ * hence the rasterizer must not be used concurrently.
+ *
+ * @param trackGeometry geometry of the track line
+ * @param poiPoints points of interest
+ * @param pixelRatio ratio of the frame pixels to the map tile pixels,
+ * which must be the one of the map snapshots
+ * @param lineWidthPx width of the track line
+ * @param arrowSpacingPx distance between the direction arrows along the track line
+ * @param poiRadiusPx radius of the POI marker
+ */
+class TrackFrameRasterizer(
+    trackGeometry: TrackGeometry,
+    poiPoints: List<Point>,
+    private val pixelRatio: Double,
+    private val lineWidthPx: Int = 5,
+    private val arrowSpacingPx: Double = 40.0,
+    private val poiRadiusPx: Int = 5,
+) {
+    // Unit Web Mercator coordinates, 0..1.
+    private val trackX = DoubleArray(trackGeometry.pointCount) { getUnitX(trackGeometry.lngs[it]) }
+    private val trackY = DoubleArray(trackGeometry.pointCount) { getUnitY(trackGeometry.lats[it]) }
+    private val poiX = DoubleArray(poiPoints.size) { getUnitX(poiPoints[it].longitude()) }
+    private val poiY = DoubleArray(poiPoints.size) { getUnitY(poiPoints[it].latitude()) }
+
+    // Projected track points, reused between the calls.
+    private val frameX = DoubleArray(trackGeometry.pointCount)
+    private val frameY = DoubleArray(trackGeometry.pointCount)
+
+    private var output = ByteArray(0)
+    private var width = 0
+    private var height = 0
+    private var bytesWidth = 0
+
+    /**
+     * Rasterizes the frame centered at the given location
+     * and rotated so the [bearing] points up.
+     *
+     * @param zoom map zoom defining the scale
+     * @param locationX X of the location in the frame
+     * @param locationY Y of the location in the frame
+     * @param output buffer of at least [MonochromeFrameEncoder.getEncodedSize] bytes.
+     * Its content is overwritten
+     */
+    fun rasterize(
+        lat: Double,
+        lng: Double,
+        bearing: Double?,
+        zoom: Double,
+        width: Int,
+        height: Int,
+        locationX: Double,
+        locationY: Double,
+        output: ByteArray,
+    ) {
+        this.output = output
+        this.width = width
+        this.height = height
+        this.bytesWidth = (width + 7) / 8
+
+        // White background.
+        output.fill(0xFF.toByte(), 0, MonochromeFrameEncoder.getEncodedSize(width, height))
+
+        val worldSizePx = MAP_TILE_SIZE_PX * 2.0.pow(zoom) * pixelRatio
+        val centerX = getUnitX(lng)
+        val centerY = getUnitY(lat)
+        val bearingRad = Math.toRadians(bearing ?: 0.0)
+        val cos = cos(bearingRad)
+        val sin = sin(bearingRad)
+
+        fun project(unitX: Double, unitY: Double, i: Int, outX: DoubleArray, outY: DoubleArray) {
+            val dx = (unitX - centerX) * worldSizePx
+            val dy = (unitY - centerY) * worldSizePx
+            // Rotate counter the bearing, so it points up.
+            outX[i] = locationX + dx * cos + dy * sin
+            outY[i] = locationY - dx * sin + dy * cos
+        }
+
+        for (i in trackX.indices) {
+            project(trackX[i], trackY[i], i, frameX, frameY)
+        }
+
+        // The track line.
+        for (i in 0 until trackX.size - 1) {
+            drawLine(frameX[i], frameY[i], frameX[i + 1], frameY[i + 1], lineWidthPx, isBlack = true)
+        }
+
+        drawDirectionArrows()
+
+        // The POI as rings.
+        val poiFrameX = DoubleArray(1)
+        val poiFrameY = DoubleArray(1)
+        for (i in poiX.indices) {
+            project(poiX[i], poiY[i], 0, poiFrameX, poiFrameY)
+            val x = poiFrameX[0].roundToInt()
+            val y = poiFrameY[0].roundToInt()
+            drawDisk(x, y, poiRadiusPx, isBlack = true)
+            drawDisk(x, y, poiRadiusPx - 2, isBlack = false)
+        }
+    }
+
+    /**
+     * Draws white chevrons on the track line pointing along it.
+     */
+    private fun drawDirectionArrows() {
+        val arrowSize = lineWidthPx / 2.0 + 0.5
+        var untilNextArrowPx = arrowSpacingPx / 2
+
+        for (i in 0 until trackX.size - 1) {
+            val x0 = frameX[i]
+            val y0 = frameY[i]
+            val segmentX = frameX[i + 1] - x0
+            val segmentY = frameY[i + 1] - y0
+            val segmentLength = hypot(segmentX, segmentY)
+            if (segmentLength == 0.0) {
+                continue
+            }
+
+            // Skip segments far outside the frame.
+            if (!isSegmentNearFrame(x0, y0, frameX[i + 1], frameY[i + 1], arrowSpacingPx)) {
+                untilNextArrowPx = (untilNextArrowPx - segmentLength).mod(arrowSpacingPx)
+                continue
+            }
+
+            val ux = segmentX / segmentLength
+            val uy = segmentY / segmentLength
+            var position = untilNextArrowPx
+
+            while (position <= segmentLength) {
+                val tipX = x0 + ux * position
+                val tipY = y0 + uy * position
+                val backX = tipX - ux * arrowSize
+                val backY = tipY - uy * arrowSize
+
+                drawLine(backX - uy * arrowSize, backY + ux * arrowSize, tipX, tipY, 1, isBlack = false)
+                drawLine(backX + uy * arrowSize, backY - ux * arrowSize, tipX, tipY, 1, isBlack = false)
+
+                position += arrowSpacingPx
+            }
+
+            untilNextArrowPx = position - segmentLength
+        }
+    }
+
+    private fun isSegmentNearFrame(
+        x0: Double, y0: Double,
+        x1: Double, y1: Double,
+        margin: Double,
+    ): Boolean =
+        !(x0 < -margin && x1 < -margin
+                || y0 < -margin && y1 < -margin
+                || x0 > width + margin && x1 > width + margin
+                || y0 > height + margin && y1 > height + margin)
+
+    /**
+     * Draws a line of the given width, clipped to the frame.
+     */
+    private fun drawLine(
+        fromX: Double, fromY: Double,
+        toX: Double, toY: Double,
+        lineWidth: Int,
+        isBlack: Boolean,
+    ) {
+        // Liang–Barsky clipping to the frame extended by the line width.
+        val margin = lineWidth.toDouble()
+        val dx = toX - fromX
+        val dy = toY - fromY
+        var t0 = 0.0
+        var t1 = 1.0
+
+        fun clip(p: Double, q: Double): Boolean {
+            if (p == 0.0) {
+                return q >= 0
+            }
+            val r = q / p
+            if (p < 0) {
+                if (r > t1) return false
+                if (r > t0) t0 = r
+            } else {
+                if (r < t0) return false
+                if (r < t1) t1 = r
+            }
+            return true
+        }
+
+        if (!(clip(-dx, fromX + margin)
+                    && clip(dx, width + margin - fromX)
+                    && clip(-dy, fromY + margin)
+                    && clip(dy, height + margin - fromY))
+        ) {
+            return
+        }
+
+        val x0 = fromX + dx * t0
+        val y0 = fromY + dy * t0
+        val x1 = fromX + dx * t1
+        val y1 = fromY + dy * t1
+
+        // Step along the major axis, filling a span across the minor one.
+        val isSteep = abs(y1 - y0) > abs(x1 - x0)
+        val majorFrom = if (isSteep) y0 else x0
+        val majorTo = if (isSteep) y1 else x1
+        val minorFrom = if (isSteep) x0 else y0
+        val minorTo = if (isSteep) x1 else y1
+        val steps = abs(majorTo - majorFrom).roundToInt()
+        val majorStep = if (majorTo >= majorFrom) 1 else -1
+        val minorStep = if (steps == 0) 0.0 else (minorTo - minorFrom) / steps
+        val spanStart = -(lineWidth - 1) / 2
+        val spanEnd = spanStart + lineWidth - 1
+        val majorStart = majorFrom.roundToInt()
+
+        for (step in 0..steps) {
+            val major = majorStart + step * majorStep
+            val minor = (minorFrom + minorStep * step).roundToInt()
+
+            for (offset in spanStart..spanEnd) {
+                if (isSteep) {
+                    setPixel(minor + offset, major, isBlack)
+                } else {
+                    setPixel(major, minor + offset, isBlack)
+                }
+            }
+        }
+    }
+
+    private fun drawDisk(
+        centerX: Int,
+        centerY: Int,
+        radius: Int,
+        isBlack: Boolean,
+    ) {
+        if (radius <= 0) {
+            return
+        }
+
+        val radiusSquared = radius * radius
+        for (y in -radius..radius) {
+            for (x in -radius..radius) {
+                if (x * x + y * y <= radiusSquared) {
+                    setPixel(centerX + x, centerY + y, isBlack)
+                }
+            }
+        }
+    }
+
+    private fun setPixel(x: Int, y: Int, isBlack: Boolean) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return
+        }
+
+        val index = y * bytesWidth + x / 8
+        val mask = 0x80 ushr (x % 8)
+        output[index] =
+            if (isBlack)
+                (output[index].toInt() and mask.inv()).toByte()
+            else
+                (output[index].toInt() or mask).toByte()
+    }
+
+    private companion object {
+        private const val MAP_TILE_SIZE_PX = 512
+
+        private fun getUnitX(lng: Double): Double =
+            (lng + 180) / 360
+
+        private fun getUnitY(lat: Double): Double {
+            val latRad = Math.toRadians(lat)
+            return (1 - ln(tan(latRad) + 1 / cos(latRad)) / PI) / 2
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import ua.com.radiokot.osmanddisplay.base.extension.kLogger
+import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import ua.com.radiokot.osmanddisplay.features.map.model.MonochromeFrame
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry.Companion.getBearingDiffDeg
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry.Companion.getDistanceM
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackSpatialIndex
+import java.util.*
+
+/**
+ * Predicts locations of the next frames along the track
+ * and keeps frames prepared for them in advance,
+ * so once the rider gets there, the frame is ready to be sent.
+ *
+ * The prediction assumes the rider keeps the current speed and follows the track
+ * in the direction of the current bearing. Distance between the frames
+ * is learned from the actual location updates interval.
+ * As the frame overlays may be inverted from time to time,
+ * prepared frames are only taken for the frames of the same inversion.
+ *
+ * @param trackGeometry geometry of the track line
+ * @param spatialIndex index of the [trackGeometry] segments
+ * @param framesAhead count of the frames to prepare ahead
+ * @param maxHitDistanceM max distance between the prepared frame location
+ * and the actual one at which the prepared frame can be used
+ * @param maxHitBearingDiffDeg max difference between the prepared frame bearing
+ * and the actual one at which the prepared frame can be used
+ */
+class TrackLookAhead(
+    private val trackGeometry: TrackGeometry,
+    private val spatialIndex: TrackSpatialIndex,
+    private val framesAhead: Int = 3,
+    private val maxHitDistanceM: Double = 5.0,
+    private val maxHitBearingDiffDeg: Double = 15.0,
+) {
+    data class Stats(
+        /**
+         * Count of the frames taken prepared.
+         */
+        val hitCount: Int,
+        /**
+         * Count of the frames which had to be composed as there was no prepared one.
+         */
+        val missCount: Int,
+        /**
+         * Count of the prepared frames which have never been taken.
+         */
+        val wastedCount: Int,
+    )
+
+    /**
+     * @param framesAhead count of the frames to be shown until this one,
+     * counting from the frame of the location it is predicted from
+     */
+    class LocationToPrepare(
+        val location: LocationData,
+        val framesAhead: Int,
+    )
+
+    private class PreparedFrame(
+        val location: LocationData,
+        val frame: MonochromeFrame,
+        val isInverted: Boolean,
+        val preparedAt: Long,
+    )
+
+    private val logger = kLogger("TrackLookAhead")
+
+    private val lats = trackGeometry.lats
+    private val lngs = trackGeometry.lngs
+
+    private val preparedFrames = mutableListOf<PreparedFrame>()
+    private val locationsToPrepare = ArrayDeque<LocationToPrepare>()
+    private var lastLocationAt = 0L
+    private var locationIntervalMs = DEFAULT_LOCATION_INTERVAL_MS
+
+    private var hitCount = 0
+    private var missCount = 0
+    private var wastedCount = 0
+
+    val stats: Stats
+        @Synchronized
+        get() = Stats(
+            hitCount = hitCount,
+            missCount = missCount,
+            wastedCount = wastedCount,
+        )
+
+    /**
+     * Whether there are locations to prepare the frames for.
+     */
+    val hasLocationsToPrepare: Boolean
+        @Synchronized
+        get() = locationsToPrepare.isNotEmpty()
+
+    /**
+     * Predicts the next frame locations from the new [location],
+     * drops prepared frames that are no longer relevant.
+     *
+     * @param location location which frame is to be shown
+     * @param speedMs current speed in m/s
+     */
+    @Synchronized
+    fun onLocation(
+        location: LocationData,
+        speedMs: Double,
+    ) {
+        val now = System.currentTimeMillis()
+        val intervalMs = now - lastLocationAt
+        if (lastLocationAt != 0L && intervalMs < MAX_LOCATION_INTERVAL_MS) {
+            locationIntervalMs =
+                (locationIntervalMs * (1 - SMOOTHING_FACTOR) + intervalMs * SMOOTHING_FACTOR).toLong()
+        }
+        lastLocationAt = now
+
+        val predictedLocations =
+            if (speedMs >= MIN_SPEED_MS && location.bearing != null && lats.size >= 2)
+                (1..framesAhead).mapNotNull { i ->
+                    getLocationAhead(location, speedMs * locationIntervalMs / 1000 * i)
+                }
+            else
+                emptyList()
+
+        // Keep the frame for the current location, as it is yet to be taken.
+        val relevantLocations = predictedLocations + location
+        val iterator = preparedFrames.iterator()
+        while (iterator.hasNext()) {
+            val preparedFrame = iterator.next()
+            if (relevantLocations.none { isMatching(preparedFrame.location, it) }) {
+                iterator.remove()
+                wastedCount++
+            }
+        }
+
+        locationsToPrepare.clear()
+        predictedLocations
+            .mapIndexed { i, predictedLocation ->
+                LocationToPrepare(
+                    location = predictedLocation,
+                    framesAhead = i + 1,
+                )
+            }
+            .filter { locationToPrepare ->
+                preparedFrames.none { isMatching(it.location, locationToPrepare.location) }
+            }
+            .forEach(locationsToPrepare::addLast)
+
+        logger.debug {
+            "onLocation(): predicted:" +
+                    "\nlocations=$predictedLocations," +
+                    "\ninterval_ms=$locationIntervalMs," +
+                    "\nprepared_count=${preparedFrames.size}," +
+                    "\nto_prepare_count=${locationsToPrepare.size}"
+        }
+    }
+
+    /**
+     * @return next location to prepare the frame for, if any
+     */
+    @Synchronized
+    fun getNextLocationToPrepare(): LocationToPrepare? =
+        locationsToPrepare.pollFirst()
+
+    /**
+     * Keeps the [frame] prepared for the [location].
+     *
+     * @param isInverted whether the [frame] overlays are inverted
+     */
+    @Synchronized
+    fun onFramePrepared(
+        location: LocationData,
+        frame: MonochromeFrame,
+        isInverted: Boolean,
+    ) {
+        preparedFrames.add(
+            PreparedFrame(
+                location = location,
+                frame = frame,
+                isInverted = isInverted,
+                preparedAt = System.currentTimeMillis(),
+            )
+        )
+    }
+
+    /**
+     * @param isInverted whether the overlays of the frame to show must be inverted
+     *
+     * @return frame prepared for a location close enough to the given one, if any
+     */
+    @Synchronized
+    fun takePreparedFrame(
+        location: LocationData,
+        isInverted: Boolean,
+    ): MonochromeFrame? {
+        val currentMinute = System.currentTimeMillis() / MINUTE_MS
+        val preparedFrame = preparedFrames
+            .filter { isMatching(it.location, location) }
+            // Prepared for another frame in the sequence.
+            .filter { it.isInverted == isInverted }
+            // The time on the frame must be the same.
+            .filter { it.preparedAt / MINUTE_MS == currentMinute }
+            .minByOrNull { getDistanceM(it.location.lat, it.location.lng, location.lat, location.lng) }
+
+        if (preparedFrame == null) {
+            missCount++
+            return null
+        }
+
+        preparedFrames.remove(preparedFrame)
+        hitCount++
+
+        logger.debug {
+            "takePreparedFrame(): hit:" +
+                    "\nlocation=$location," +
+                    "\nprepared_location=${preparedFrame.location}"
+        }
+
+        return preparedFrame.frame
+    }
+
+    /**
+     * @param location current location with a bearing
+     * @param distanceM distance along the track to look for a turn within
+     *
+     * @return true if the [location] is on the track and the track turns
+     * by at least [TURN_MIN_BEARING_DIFF_DEG] within the [distanceM] ahead
+     */
+    @Synchronized
+    fun isTurnAhead(
+        location: LocationData,
+        distanceM: Double,
+    ): Boolean {
+        val bearing = location.bearing
+            ?: return false
+        if (lats.size < 2) {
+            return false
+        }
+
+        val projection = getProjection(location)
+            ?: return false
+
+        val segmentIndex = projection.segmentIndex
+        val isForward = getBearingDiffDeg(
+            trackGeometry.getBearingDeg(segmentIndex, segmentIndex + 1),
+            bearing
+        ) <= 90
+        val step = if (isForward) 1 else -1
+        val fromIndex = if (isForward) segmentIndex else segmentIndex + 1
+        var toIndex = fromIndex + step
+        val currentBearing = trackGeometry.getBearingDeg(fromIndex, toIndex)
+        var remainingM = distanceM - getDistanceM(
+            location.lat, location.lng,
+            lats[toIndex], lngs[toIndex],
+        )
+
+        while (remainingM > 0 && toIndex + step in lats.indices) {
+            val nextIndex = toIndex + step
+            val segmentM = getDistanceM(lats[toIndex], lngs[toIndex], lats[nextIndex], lngs[nextIndex])
+
+            // Skip degenerate segments which bearing is meaningless.
+            if (segmentM > 0
+                && getBearingDiffDeg(
+                    trackGeometry.getBearingDeg(toIndex, nextIndex),
+                    currentBearing
+                ) >= TURN_MIN_BEARING_DIFF_DEG
+            ) {
+                return true
+            }
+
+            remainingM -= segmentM
+            toIndex = nextIndex
+        }
+
+        return false
+    }
+
+    /**
+     * Drops all the prepared frames.
+     */
+    @Synchronized
+    fun clear() {
+        wastedCount += preparedFrames.size
+        preparedFrames.clear()
+        locationsToPrepare.clear()
+    }
+
+    private fun isMatching(
+        preparedLocation: LocationData,
+        location: LocationData,
+    ): Boolean {
+        val preparedBearing = preparedLocation.bearing
+        val bearing = location.bearing
+
+        return getDistanceM(
+            preparedLocation.lat, preparedLocation.lng,
+            location.lat, location.lng
+        ) <= maxHitDistanceM
+                && (preparedBearing == null && bearing == null
+                || preparedBearing != null && bearing != null
+                && getBearingDiffDeg(preparedBearing, bearing) <= maxHitBearingDiffDeg)
+    }
+
+    /**
+     * @return location on the track [distanceM] ahead of the [location] projection
+     * in the direction of its bearing, or null if the [location] is not on the track
+     * or the track ends earlier
+     */
+    private fun getLocationAhead(
+        location: LocationData,
+        distanceM: Double,
+    ): LocationData? {
+        val bearing = location.bearing
+            ?: return null
+
+        val projection = getProjection(location)
+            ?: return null
+        val closestSegment = projection.segmentIndex
+
+        val isForward = getBearingDiffDeg(
+            trackGeometry.getBearingDeg(closestSegment, closestSegment + 1),
+            bearing
+        ) <= 90
+
+        // Walk along the track from the projection.
+        var fromLat = projection.lat
+        var fromLng = projection.lng
+        var toIndex = if (isForward) closestSegment + 1 else closestSegment
+        var remainingM = distanceM
+
+        while (toIndex in lats.indices) {
+            val segmentM = getDistanceM(fromLat, fromLng, lats[toIndex], lngs[toIndex])
+
+            if (segmentM >= remainingM && segmentM > 0) {
+                val fraction = remainingM / segmentM
+                val fromIndex = if (isForward) toIndex - 1 else toIndex + 1
+
+                return LocationData(
+                    lng = fromLng + (lngs[toIndex] - fromLng) * fraction,
+                    lat = fromLat + (lats[toIndex] - fromLat) * fraction,
+                    bearing = trackGeometry.getBearingDeg(fromIndex, toIndex),
+                )
+            }
+
+            remainingM -= segmentM
+            fromLat = lats[toIndex]
+            fromLng = lngs[toIndex]
+            toIndex += if (isForward) 1 else -1
+        }
+
+        return null
+    }
+
+    /**
+     * @return projection of the [location] onto the closest track segment,
+     * or null if the [location] is not on the track
+     */
+    private fun getProjection(location: LocationData): TrackGeometry.Projection? =
+        spatialIndex.getNearestSegment(
+            geometry = trackGeometry,
+            lat = location.lat,
+            lng = location.lng,
+            maxDistanceM = MAX_ON_TRACK_DISTANCE_M,
+        )
+
+    private companion object {
+        private const val MIN_SPEED_MS = 1.0
+        private const val DEFAULT_LOCATION_INTERVAL_MS = 8000L
+        private const val MAX_LOCATION_INTERVAL_MS = 60000L
+        private const val SMOOTHING_FACTOR = 0.25
+        private const val MINUTE_MS = 60000L
+        private const val MAX_ON_TRACK_DISTANCE_M = 50.0
+        private const val TURN_MIN_BEARING_DIFF_DEG = 45.0
+    }
+}
@@ -0,0 +1,184 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import ua.com.radiokot.osmanddisplay.base.extension.kLogger
+import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry.Companion.getBearingDiffDeg
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackSpatialIndex
+import kotlin.math.min
+
+/**
+ * Snaps locations to the track, so the GPS noise doesn't make the marker
+ * wander off the drawn route.
+ *
+ * The match is searched around the last matched segment first,
+ * so while the rider follows the track each location costs a bounded amount of work.
+ * Once the rider is lost, the match is searched among the segments nearby
+ * found by the [spatialIndex].
+ *
+ * @param trackGeometry geometry of the track line
+ * @param spatialIndex index of the [trackGeometry] segments
+ * @param maxMatchDistanceM max distance from the track at which the location is matched
+ * @param maxBearingDiffDeg max difference between the location bearing
+ * and the segment direction at which the segment is plausible
+ * @param searchWindowM distance along the track around the last matched segment
+ * to search for the match within
+ */
+class TrackMatcher(
+    private val trackGeometry: TrackGeometry,
+    private val spatialIndex: TrackSpatialIndex,
+    private val maxMatchDistanceM: Double = 25.0,
+    private val maxBearingDiffDeg: Double = 60.0,
+    private val searchWindowM: Double = 200.0,
+) {
+    private val logger = kLogger("TrackMatcher")
+
+    /**
+     * Projection of the last location onto the track, or null if it is off route.
+     */
+    var matchedProjection: TrackGeometry.Projection? = null
+        @Synchronized get
+        private set
+
+    /**
+     * @return the [location] snapped to the track with the bearing of the matched segment,
+     * or null if the rider is off route
+     */
+    @Synchronized
+    fun match(location: LocationData): LocationData? {
+        if (trackGeometry.segmentCount == 0) {
+            return null
+        }
+
+        val lastSegmentIndex = matchedProjection?.segmentIndex
+        var projection =
+            if (lastSegmentIndex != null)
+                findPlausibleProjection(location, getSearchWindow(lastSegmentIndex))
+            else
+                null
+
+        if (projection == null) {
+            projection = findPlausibleProjection(
+                location,
+                spatialIndex
+                    .getSegmentsAround(location.lat, location.lng, maxMatchDistanceM)
+                    .asIterable()
+            )
+        }
+
+        if (projection == null) {
+            if (lastSegmentIndex != null) {
+                logger.debug {
+                    "match(): off_route:" +
+                            "\nlocation=$location," +
+                            "\nlast_segment_index=$lastSegmentIndex"
+                }
+            }
+
+            matchedProjection = null
+            return null
+        }
+
+        if (lastSegmentIndex == null) {
+            logger.debug {
+                "match(): on_route:" +
+                        "\nlocation=$location," +
+                        "\nsegment_index=${projection.segmentIndex}"
+            }
+        }
+
+        matchedProjection = projection
+
+        return LocationData(
+            lng = projection.lng,
+            lat = projection.lat,
+            bearing = getMatchedBearing(location.bearing, projection.segmentIndex),
+        )
+    }
+
+    /**
+     * @return indices of the segments within the [searchWindowM] along the track
+     * in both directions from the [segmentIndex], as the rider may follow the track backwards
+     */
+    private fun getSearchWindow(segmentIndex: Int): IntRange {
+        var fromIndex = segmentIndex
+        var backwardM = 0.0
+        while (fromIndex > 0
+            && backwardM < searchWindowM
+            && segmentIndex - fromIndex < MAX_WINDOW_SEGMENTS
+        ) {
+            fromIndex--
+            backwardM += trackGeometry.getSegmentLengthM(fromIndex)
+        }
+
+        var toIndex = segmentIndex
+        var forwardM = trackGeometry.getSegmentLengthM(segmentIndex)
+        while (toIndex < trackGeometry.segmentCount - 1
+            && forwardM < searchWindowM
+            && toIndex - segmentIndex < MAX_WINDOW_SEGMENTS
+        ) {
+            toIndex++
+            forwardM += trackGeometry.getSegmentLengthM(toIndex)
+        }
+
+        return fromIndex..toIndex
+    }
+
+    /**
+     * @return projection onto the closest segment within [segmentIndices]
+     * which is close enough to the [location] and goes along its bearing, if any
+     */
+    private fun findPlausibleProjection(
+        location: LocationData,
+        segmentIndices: Iterable<Int>,
+    ): TrackGeometry.Projection? {
+        var closestProjection: TrackGeometry.Projection? = null
+        for (i in segmentIndices) {
+            val projection = trackGeometry.getProjection(location.lat, location.lng, i)
+            if (projection.distanceM <= maxMatchDistanceM
+                && (closestProjection == null || projection.distanceM < closestProjection.distanceM)
+                && isPlausibleDirection(location.bearing, i)
+            ) {
+                closestProjection = projection
+            }
+        }
+        return closestProjection
+    }
+
+    private fun isPlausibleDirection(
+        bearing: Double?,
+        segmentIndex: Int,
+    ): Boolean {
+        if (bearing == null || trackGeometry.getSegmentLengthM(segmentIndex) == 0.0) {
+            return true
+        }
+
+        val diff = getBearingDiffDeg(trackGeometry.getBearingDeg(segmentIndex, segmentIndex + 1), bearing)
+        // The segment may be followed in any direction.
+        return min(diff, 180 - diff) <= maxBearingDiffDeg
+    }
+
+    /**
+     * @return direction of the segment closest to the [bearing],
+     * or the [bearing] itself if it is unknown or the segment is degenerate
+     */
+    private fun getMatchedBearing(
+        bearing: Double?,
+        segmentIndex: Int,
+    ): Double? {
+        if (bearing == null || trackGeometry.getSegmentLengthM(segmentIndex) == 0.0) {
+            return bearing
+        }
+
+        val segmentBearing = trackGeometry.getBearingDeg(segmentIndex, segmentIndex + 1)
+        return if (getBearingDiffDeg(segmentBearing, bearing) <= 90)
+            segmentBearing
+        else
+            (segmentBearing + 180) % 360
+    }
+
+    private companion object {
+        // Limits the window on densely sampled tracks.
+        private const val MAX_WINDOW_SEGMENTS = 64
+    }
+}
@@ -0,0 +1,129 @@
+package ua.com.radiokot.osmanddisplay.features.map.logic
+
+import android.graphics.Canvas
+import android.graphics.Rect
+import android.util.Size
+import io.reactivex.Single
+import io.reactivex.rxkotlin.toSingle
+import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import ua.com.radiokot.osmanddisplay.features.map.model.MonochromeFrame
+import kotlin.math.roundToInt
+
+/**
+ * Composes frames with only the track, its direction and the POI on them,
+ * rasterized by the [rasterizer] with no map rendering.
+ * Draws location marker and bearing, if it is available.
+ *
+ * The intermediate bitmap for the overlays is obtained from the [bitmapPool].
+ *
+ * The frame geometry is the same as of [SnapshotterMapFrameFactory] frames.
+ */
+class TrackOnlyMapFrameFactory(
+    private val rasterizer: TrackFrameRasterizer,
+    private val overlayPainter: MapFrameOverlayPainter,
+    private val bitmapPool: FrameBitmapPool,
+    private val frameWidthPx: Int,
+    private val frameHeightPx: Int,
+) : MapFrameFactory {
+    private var rasterizedFrame = ByteArray(0)
+    private var pixels = IntArray(0)
+    private val frameEncoder = MonochromeFrameEncoder()
+
+    override fun composeFrame(
+        location: LocationData,
+        cameraZoom: Double,
+        postScale: Double,
+        invertOverlays: Boolean,
+    ): Single<MonochromeFrame> = {
+        synchronized(this) {
+            composeFrameSync(location, cameraZoom, postScale, invertOverlays)
+        }
+    }.toSingle()
+
+    private fun composeFrameSync(
+        location: LocationData,
+        cameraZoom: Double,
+        postScale: Double,
+        invertOverlays: Boolean,
+    ): MonochromeFrame {
+        // The lower the post scale, the bigger area
+        // we have to fit into the frame
+        val scaledFrameWidth = (frameWidthPx / postScale).toInt()
+        val scaledFrameHeight = (frameHeightPx / postScale).toInt()
+
+        // If there is a bearing, offset the center to see
+        // more upcoming path.
+        val centerYOffset =
+            if (location.bearing != null)
+                (scaledFrameHeight * 0.65 / 2).roundToInt()
+            else
+                0
+        val locationX = scaledFrameWidth / 2f
+        val locationY = scaledFrameHeight / 2f + centerYOffset
+
+        val rasterizedFrameSize =
+            MonochromeFrameEncoder.getEncodedSize(scaledFrameWidth, scaledFrameHeight)
+        if (rasterizedFrame.size != rasterizedFrameSize) {
+            rasterizedFrame = ByteArray(rasterizedFrameSize)
+            pixels = IntArray(scaledFrameWidth * scaledFrameHeight)
+        }
+
+        rasterizer.rasterize(
+            lat = location.lat,
+            lng = location.lng,
+            bearing = location.bearing,
+            zoom = cameraZoom,
+            width = scaledFrameWidth,
+            height = scaledFrameHeight,
+            locationX = locationX.toDouble(),
+            locationY = locationY.toDouble(),
+            output = rasterizedFrame,
+        )
+
+        MonochromeFrameEncoder.decode(
+            encoded = rasterizedFrame,
+            width = scaledFrameWidth,
+            height = scaledFrameHeight,
+            pixels = pixels,
+        )
+
+        val scaledFrame = bitmapPool.obtain(scaledFrameWidth, scaledFrameHeight, BITMAP_OWNER)
+        scaledFrame.setPixels(pixels, 0, scaledFrameWidth, 0, 0, scaledFrameWidth, scaledFrameHeight)
+
+        overlayPainter.draw(
+            canvas = Canvas(scaledFrame),
+            frameWidth = scaledFrameWidth,
+            frameHeight = scaledFrameHeight,
+            locationX = locationX,
+            locationY = locationY,
+            hasBearing = location.bearing != null,
+            isInverted = invertOverlays,
+        )
+
+        // Scale and threshold the result to the required size at once.
+        val encodedFrame = frameEncoder.encodeScaled(
+            frame = scaledFrame,
+            cropRect = Rect(0, 0, scaledFrameWidth, scaledFrameHeight),
+            outputWidth = frameWidthPx,
+            outputHeight = frameHeightPx,
+        )
+        bitmapPool.release(scaledFrame)
+
+        return MonochromeFrame(
+            width = frameWidthPx,
+            height = frameHeightPx,
+            data = encodedFrame.copyOf(),
+        )
+    }
+
+    override fun getTimeCornerSize(postScale: Double): Size =
+        overlayPainter.getTimeCornerSize(postScale)
+
+    override fun destroy() {
+        // Nothing to release.
+    }
+
+    private companion object {
+        private const val BITMAP_OWNER = "TrackOnlyMapFrameFactory"
+    }
+}
@@ -0,0 +1,48 @@
+package ua.com.radiokot.osmanddisplay.features.map.model
+
+import android.graphics.Bitmap
+import ua.com.radiokot.osmanddisplay.features.map.logic.MonochromeFrameEncoder
+
+/**
+ * Frame already packed in the display format, see [MonochromeFrameEncoder].
+ *
+ * @param data packed frame rows, which must not be modified
+ */
+class MonochromeFrame(
+    val width: Int,
+    val height: Int,
+    val data: ByteArray,
+) {
+    init {
+        require(data.size == MonochromeFrameEncoder.getEncodedSize(width, height)) {
+            "Data size doesn't match the frame size"
+        }
+    }
+
+    /**
+     * @return a new black and white bitmap of the frame, e.g. for a preview
+     */
+    fun toBitmap(): Bitmap {
+        val pixels = IntArray(width * height)
+        MonochromeFrameEncoder.decode(data, width, height, pixels)
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888)
+    }
+
+    /**
+     * Draws the frame into the mutable [bitmap] of the same size without allocations.
+     *
+     * @param pixels buffer of at least [width] * [height] pixels.
+     * Its content is overwritten
+     */
+    fun drawTo(
+        bitmap: Bitmap,
+        pixels: IntArray,
+    ) {
+        require(bitmap.width == width && bitmap.height == height) {
+            "Bitmap size doesn't match the frame size"
+        }
+
+        MonochromeFrameEncoder.decode(data, width, height, pixels)
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height)
+    }
+}
@@ -0,0 +1,53 @@
+package ua.com.radiokot.osmanddisplay.features.track.data.model
+
+import com.mapbox.geojson.Point
+
+/**
+ * Growing buffer of coordinates kept as primitive doubles,
+ * so reading large tracks doesn't create an object per point.
+ *
+ * @param initialCapacity initial count of the points to fit
+ */
+class CoordinatesBuffer(
+    initialCapacity: Int = 1024,
+) {
+    // Interleaved longitude and latitude pairs.
+    private var values = DoubleArray(initialCapacity * 2)
+
+    /**
+     * Count of the points.
+     */
+    var size: Int = 0
+        private set
+
+    fun add(lng: Double, lat: Double) {
+        if (size * 2 == values.size) {
+            values = values.copyOf(maxOf(values.size * 2, 2))
+        }
+        values[size * 2] = lng
+        values[size * 2 + 1] = lat
+        size++
+    }
+
+    fun getLng(index: Int): Double {
+        checkIndex(index)
+        return values[index * 2]
+    }
+
+    fun getLat(index: Int): Double {
+        checkIndex(index)
+        return values[index * 2 + 1]
+    }
+
+    fun isEmpty(): Boolean =
+        size == 0
+
+    fun toPoints(): List<Point> =
+        List(size) { i -> Point.fromLngLat(values[i * 2], values[i * 2 + 1]) }
+
+    private fun checkIndex(index: Int) {
+        if (index !in 0 until size) {
+            throw IndexOutOfBoundsException("Index $index is out of 0..${size - 1}")
+        }
+    }
+}
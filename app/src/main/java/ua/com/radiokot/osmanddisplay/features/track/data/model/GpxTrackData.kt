@@ -2,16 +2,7 @@ package ua.com.radiokot.osmanddisplay.features.track.data.model
 
 class GpxTrackData(
     val name: String?,
-    val track: List<GpxData.Track.Point>,
+    val track: CoordinatesBuffer,
+    val poi: CoordinatesBuffer,
     val link: String?,
-) {
-
-    constructor(gpx: GpxData) : this(
-        name = (gpx.metadata?.name ?: gpx.track.name)
-            ?.takeIf(String::isNotEmpty),
-        track = gpx.track.segments
-            .flatMap(GpxData.Track.Segment::trackPoints),
-        link = gpx.metadata?.link?.href
-            ?.takeIf(String::isNotEmpty),
-    )
-}
+)
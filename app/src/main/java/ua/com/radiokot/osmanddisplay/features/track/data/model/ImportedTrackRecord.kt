@@ -6,8 +6,10 @@ import com.mapbox.geojson.FeatureCollection
 import com.mapbox.geojson.GeoJson
 import com.mapbox.geojson.LineString
 import com.mapbox.geojson.MultiPoint
+import com.mapbox.geojson.Point
 import kotlinx.android.parcel.Parcelize
 import java.io.File
+import java.io.IOException
 import java.util.Date
 
 @Parcelize
@@ -21,18 +23,100 @@ class ImportedTrackRecord(
     val id: String
         get() = geoJsonFile.nameWithoutExtension
 
-    fun readTrackGeoJson(): String =
-        geoJsonFile.readText(Charsets.UTF_8)
-            .let(FeatureCollection::fromJson)
-            .features()!!
-            .first()
-            .toJson()
+    /**
+     * File of the [TrackSpatialIndex] persisted next to the track.
+     */
+    val spatialIndexFile: File
+        get() = getSpatialIndexFile(geoJsonFile.parentFile, id)
+
+    /**
+     * File of the [TrackDistanceIndex] persisted next to the track.
+     */
+    val distanceIndexFile: File
+        get() = getDistanceIndexFile(geoJsonFile.parentFile, id)
+
+    /**
+     * @param geometry geometry of the track line
+     *
+     * @return the persisted spatial index of the track. If it is missing or unreadable,
+     * e.g. for the tracks imported before the indexing, it is built and persisted
+     */
+    private fun readSpatialIndex(geometry: TrackGeometry): TrackSpatialIndex {
+        if (spatialIndexFile.exists()) {
+            try {
+                return TrackSpatialIndex.readFromFile(spatialIndexFile)
+            } catch (e: IOException) {
+                spatialIndexFile.delete()
+            }
+        }
+
+        return TrackSpatialIndex.build(geometry).also { spatialIndex ->
+            try {
+                spatialIndex.writeToFile(spatialIndexFile)
+            } catch (e: IOException) {
+                // The index is still usable, it will be built next time.
+                spatialIndexFile.delete()
+            }
+        }
+    }
+
+    /**
+     * @param geometry geometry of the track line
+     * @param spatialIndex spatial index of the [geometry], see [readSpatialIndex]
+     * @param poiPoints points of interest
+     *
+     * @return the persisted distance index of the track. If it is missing or unreadable,
+     * it is built and persisted
+     */
+    private fun readDistanceIndex(
+        geometry: TrackGeometry,
+        spatialIndex: TrackSpatialIndex,
+        poiPoints: List<Point>,
+    ): TrackDistanceIndex {
+        if (distanceIndexFile.exists()) {
+            try {
+                return TrackDistanceIndex.readFromFile(distanceIndexFile)
+            } catch (e: IOException) {
+                distanceIndexFile.delete()
+            }
+        }
 
-    fun readPoiGeoJson(): String =
-        geoJsonFile.readText(Charsets.UTF_8)
+        return TrackDistanceIndex
+            .build(geometry, spatialIndex, poiPoints)
+            .also { distanceIndex ->
+                try {
+                    distanceIndex.writeToFile(distanceIndexFile)
+                } catch (e: IOException) {
+                    distanceIndexFile.delete()
+                }
+            }
+    }
+
+    /**
+     * Parses the track once and reads its indexes, building the missing ones.
+     * Involves IO and parsing, hence must not be called on the main thread.
+     */
+    fun load(): LoadedTrack {
+        val features = geoJsonFile.readText(Charsets.UTF_8)
             .let(FeatureCollection::fromJson)
-            .features()!![1]
-            .toJson()
+            .features()!!
+        val trackFeature = features.first()
+        val poiFeature = features[1]
+
+        val geometry = TrackGeometry((trackFeature.geometry() as LineString).coordinates())
+        val poiPoints = (poiFeature.geometry() as MultiPoint).coordinates()
+        val spatialIndex = readSpatialIndex(geometry)
+
+        return LoadedTrack(
+            record = this,
+            trackGeoJson = trackFeature.toJson(),
+            poiGeoJson = poiFeature.toJson(),
+            geometry = geometry,
+            spatialIndex = spatialIndex,
+            distanceIndex = readDistanceIndex(geometry, spatialIndex, poiPoints),
+            poiPoints = poiPoints,
+        )
+    }
 
     override fun toString(): String {
         return "ImportedTrackRecord(name='$name', id='$id')"
@@ -56,6 +140,19 @@ class ImportedTrackRecord(
     companion object {
         private const val VERSION = 2
 
+        fun getSpatialIndexFile(directory: File, id: String): File =
+            File(directory, "${id}_spatial_index.bin")
+
+        fun getDistanceIndexFile(directory: File, id: String): File =
+            File(directory, "${id}_distance_index.bin")
+
+        /**
+         * @return file of the track geometry as it was before the import simplification,
+         * which is only kept if requested. Its extension keeps it out of the records
+         */
+        fun getOriginalTrackFile(directory: File, id: String): File =
+            File(directory, "${id}_original_track.json")
+
         fun fromGeoJsonFile(file: File): ImportedTrackRecord {
             val features = FeatureCollection.fromJson(file.readText()).features()
             requireNotNull(features) {
@@ -0,0 +1,27 @@
+package ua.com.radiokot.osmanddisplay.features.track.data.model
+
+import com.mapbox.geojson.Point
+
+/**
+ * Imported track parsed and indexed at once, see [ImportedTrackRecord.load].
+ *
+ * @param trackGeoJson GeoJSON of the track line feature
+ * @param poiGeoJson GeoJSON of the POI feature
+ * @param geometry geometry of the track line
+ * @param spatialIndex spatial index of the [geometry]
+ * @param distanceIndex distance index of the [geometry]
+ * @param poiPoints points of interest
+ */
+class LoadedTrack(
+    val record: ImportedTrackRecord,
+    val trackGeoJson: String,
+    val poiGeoJson: String,
+    val geometry: TrackGeometry,
+    val spatialIndex: TrackSpatialIndex,
+    val distanceIndex: TrackDistanceIndex,
+    val poiPoints: List<Point>,
+) {
+    override fun toString(): String {
+        return "LoadedTrack(record=$record, point_count=${geometry.pointCount})"
+    }
+}
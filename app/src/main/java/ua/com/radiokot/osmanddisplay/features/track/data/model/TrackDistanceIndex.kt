@@ -0,0 +1,180 @@
+package ua.com.radiokot.osmanddisplay.features.track.data.model
+
+import com.mapbox.geojson.Point
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+
+/**
+ * Distances along the track to its points and POI,
+ * which turn progress queries into a binary search and a segment projection
+ * instead of walking the track.
+ *
+ * Distances are measured from the track start in the track direction.
+ *
+ * @see build
+ * @see readFromFile
+ */
+class TrackDistanceIndex
+private constructor(
+    /**
+     * Distance from the start to the i-th track point.
+     */
+    private val pointDistancesM: DoubleArray,
+    /**
+     * Sorted distances from the start to the POI projections.
+     */
+    private val poiDistancesM: DoubleArray,
+) {
+    /**
+     * @param distanceAlongM distance from the start to the location projection
+     * @param distanceToGoM distance from the location projection to the end
+     * @param fraction part of the track passed, from 0 to 1
+     * @param nextPoiDistanceM distance from the location projection to the next POI ahead, if any
+     */
+    class Progress(
+        val distanceAlongM: Double,
+        val distanceToGoM: Double,
+        val fraction: Double,
+        val nextPoiDistanceM: Double?,
+    ) {
+        override fun toString(): String {
+            return "Progress(distanceAlongM=$distanceAlongM, distanceToGoM=$distanceToGoM, " +
+                    "fraction=$fraction, nextPoiDistanceM=$nextPoiDistanceM)"
+        }
+    }
+
+    val totalDistanceM: Double
+        get() = pointDistancesM.lastOrNull() ?: 0.0
+
+    /**
+     * @return distance from the start to the [projection]
+     */
+    fun getDistanceAlongM(projection: TrackGeometry.Projection): Double =
+        pointDistancesM.getDistanceAlongM(projection)
+
+    /**
+     * @return progress of the location which projection onto the track is the [projection]
+     */
+    fun getProgress(projection: TrackGeometry.Projection): Progress {
+        val distanceAlongM = getDistanceAlongM(projection)
+        val totalDistanceM = totalDistanceM
+
+        return Progress(
+            distanceAlongM = distanceAlongM,
+            distanceToGoM = totalDistanceM - distanceAlongM,
+            fraction =
+            if (totalDistanceM > 0)
+                distanceAlongM / totalDistanceM
+            else
+                1.0,
+            nextPoiDistanceM = getNextPoiDistanceAlongM(distanceAlongM)
+                ?.let { it - distanceAlongM },
+        )
+    }
+
+    /**
+     * @return distance from the start to the first POI not behind the [distanceAlongM], if any
+     */
+    fun getNextPoiDistanceAlongM(distanceAlongM: Double): Double? {
+        val index = poiDistancesM.lowerBound(distanceAlongM)
+        return poiDistancesM.getOrNull(index)
+    }
+
+    fun writeToFile(file: File) {
+        DataOutputStream(file.outputStream().buffered()).use { output ->
+            output.writeInt(VERSION)
+            output.writeInt(pointDistancesM.size)
+            pointDistancesM.forEach(output::writeDouble)
+            output.writeInt(poiDistancesM.size)
+            poiDistancesM.forEach(output::writeDouble)
+        }
+    }
+
+    companion object {
+        private const val VERSION = 1
+
+        /**
+         * POI further from the track are not considered to be on it.
+         */
+        private const val MAX_POI_DISTANCE_M = 200.0
+
+        /**
+         * @return index of the first element not less than the [value],
+         * or the size if there is none
+         */
+        private fun DoubleArray.lowerBound(value: Double): Int {
+            var from = 0
+            var to = size
+            while (from < to) {
+                val middle = (from + to) ushr 1
+                if (this[middle] < value) {
+                    from = middle + 1
+                } else {
+                    to = middle
+                }
+            }
+            return from
+        }
+
+        /**
+         * @receiver distances from the start to the track points
+         */
+        private fun DoubleArray.getDistanceAlongM(projection: TrackGeometry.Projection): Double {
+            val segmentIndex = projection.segmentIndex
+            return this[segmentIndex] + (this[segmentIndex + 1] - this[segmentIndex]) * projection.fraction
+        }
+
+        /**
+         * @param poi POI to find the distances to, the ones off the track are skipped
+         */
+        fun build(
+            geometry: TrackGeometry,
+            spatialIndex: TrackSpatialIndex,
+            poi: List<Point>,
+        ): TrackDistanceIndex {
+            val pointDistancesM = DoubleArray(geometry.pointCount)
+            for (i in 1 until geometry.pointCount) {
+                pointDistancesM[i] = pointDistancesM[i - 1] + geometry.getSegmentLengthM(i - 1)
+            }
+
+            val poiDistancesM = poi
+                .mapNotNull { point ->
+                    spatialIndex.getNearestSegment(
+                        geometry = geometry,
+                        lat = point.latitude(),
+                        lng = point.longitude(),
+                        maxDistanceM = MAX_POI_DISTANCE_M,
+                    )
+                }
+                .map(pointDistancesM::getDistanceAlongM)
+                .sorted()
+                .toDoubleArray()
+
+            return TrackDistanceIndex(
+                pointDistancesM = pointDistancesM,
+                poiDistancesM = poiDistancesM,
+            )
+        }
+
+        /**
+         * @throws IOException if the file can't be read or is of an unknown version
+         */
+        fun readFromFile(file: File): TrackDistanceIndex =
+            DataInputStream(file.inputStream().buffered()).use { input ->
+                val version = input.readInt()
+                if (version != VERSION) {
+                    throw IOException("Unknown version $version")
+                }
+
+                val pointDistancesM = DoubleArray(input.readInt()) { input.readDouble() }
+                val poiDistancesM = DoubleArray(input.readInt()) { input.readDouble() }
+
+                TrackDistanceIndex(
+                    pointDistancesM = pointDistancesM,
+                    poiDistancesM = poiDistancesM,
+                )
+            }
+    }
+}
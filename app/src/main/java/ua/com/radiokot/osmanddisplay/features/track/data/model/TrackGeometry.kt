@@ -0,0 +1,120 @@
+package ua.com.radiokot.osmanddisplay.features.track.data.model
+
+import com.mapbox.geojson.Point
+import kotlin.math.abs
+import kotlin.math.atan2
+import kotlin.math.cos
+import kotlin.math.sqrt
+
+/**
+ * Track line as primitive coordinate arrays with the geometry
+ * needed to locate the rider on it.
+ *
+ * @param trackPoints points of the track line
+ */
+class TrackGeometry(
+    trackPoints: List<Point>,
+) {
+    /**
+     * Projection of a location onto the track segment starting at [segmentIndex].
+     *
+     * @param fraction fraction of the segment at which the projection is
+     * @param distanceM distance from the location to the projection
+     */
+    class Projection(
+        val segmentIndex: Int,
+        val fraction: Double,
+        val distanceM: Double,
+        val lat: Double,
+        val lng: Double,
+    )
+
+    val lats = DoubleArray(trackPoints.size) { trackPoints[it].latitude() }
+    val lngs = DoubleArray(trackPoints.size) { trackPoints[it].longitude() }
+
+    val pointCount: Int
+        get() = lats.size
+
+    /**
+     * Count of the segments, which is 0 if the track has less than 2 points.
+     */
+    val segmentCount: Int
+        get() = (pointCount - 1).coerceAtLeast(0)
+
+    /**
+     * @return projection of the given point onto the segment starting at [segmentIndex]
+     */
+    fun getProjection(
+        lat: Double,
+        lng: Double,
+        segmentIndex: Int,
+    ): Projection {
+        val fraction = getProjectionFraction(lat, lng, segmentIndex)
+        val projectionLat = lats[segmentIndex] + (lats[segmentIndex + 1] - lats[segmentIndex]) * fraction
+        val projectionLng = lngs[segmentIndex] + (lngs[segmentIndex + 1] - lngs[segmentIndex]) * fraction
+
+        return Projection(
+            segmentIndex = segmentIndex,
+            fraction = fraction,
+            distanceM = getDistanceM(lat, lng, projectionLat, projectionLng),
+            lat = projectionLat,
+            lng = projectionLng,
+        )
+    }
+
+    /**
+     * @return fraction of the segment starting at [segmentIndex]
+     * at which the given point is projected onto it
+     */
+    fun getProjectionFraction(
+        lat: Double,
+        lng: Double,
+        segmentIndex: Int,
+    ): Double {
+        val lngScale = cos(Math.toRadians(lat))
+        val segmentX = (lngs[segmentIndex + 1] - lngs[segmentIndex]) * lngScale
+        val segmentY = lats[segmentIndex + 1] - lats[segmentIndex]
+        val pointX = (lng - lngs[segmentIndex]) * lngScale
+        val pointY = lat - lats[segmentIndex]
+        val segmentLengthSquared = segmentX * segmentX + segmentY * segmentY
+
+        return if (segmentLengthSquared == 0.0)
+            0.0
+        else
+            ((pointX * segmentX + pointY * segmentY) / segmentLengthSquared).coerceIn(0.0, 1.0)
+    }
+
+    fun getBearingDeg(fromIndex: Int, toIndex: Int): Double {
+        val x = (lngs[toIndex] - lngs[fromIndex]) * cos(Math.toRadians(lats[fromIndex]))
+        val y = lats[toIndex] - lats[fromIndex]
+        return (Math.toDegrees(atan2(x, y)) + 360) % 360
+    }
+
+    fun getSegmentLengthM(segmentIndex: Int): Double =
+        getDistanceM(
+            lats[segmentIndex], lngs[segmentIndex],
+            lats[segmentIndex + 1], lngs[segmentIndex + 1],
+        )
+
+    companion object {
+        private const val EARTH_RADIUS_M = 6371000.0
+
+        fun getBearingDiffDeg(a: Double, b: Double): Double {
+            val diff = abs(a - b) % 360
+            return if (diff > 180) 360 - diff else diff
+        }
+
+        /**
+         * @return equirectangular approximation of the distance, which is precise enough
+         * for the short distances
+         */
+        fun getDistanceM(
+            lat1: Double, lng1: Double,
+            lat2: Double, lng2: Double,
+        ): Double {
+            val x = Math.toRadians(lng2 - lng1) * cos(Math.toRadians((lat1 + lat2) / 2))
+            val y = Math.toRadians(lat2 - lat1)
+            return sqrt(x * x + y * y) * EARTH_RADIUS_M
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package ua.com.radiokot.osmanddisplay.features.track.data.model
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.floor
+import kotlin.math.max
+
+/**
+ * Sparse uniform grid over the track segments, which answers
+ * "where am I on this track" queries without scanning the whole track.
+ *
+ * Only the cells crossed by the track are stored, sorted by their keys,
+ * so a cell lookup is a binary search and the grid size doesn't depend
+ * on the track bounds.
+ *
+ * @see build
+ * @see readFromFile
+ */
+class TrackSpatialIndex
+private constructor(
+    private val originLat: Double,
+    private val originLng: Double,
+    private val cellSizeLatDeg: Double,
+    private val cellSizeLngDeg: Double,
+    /**
+     * Min size of a cell side in meters.
+     */
+    private val cellSizeM: Double,
+    private val rowCount: Int,
+    private val columnCount: Int,
+    /**
+     * Sorted keys of the non-empty cells, see [getCellKey].
+     */
+    private val cellKeys: LongArray,
+    /**
+     * Start of the segments of the i-th cell in [cellSegments],
+     * with the extra last element being the total count.
+     */
+    private val cellOffsets: IntArray,
+    private val cellSegments: IntArray,
+) {
+    /**
+     * @return projection of the given point onto the closest segment
+     * not further than [maxDistanceM], or null if there is none
+     */
+    fun getNearestSegment(
+        geometry: TrackGeometry,
+        lat: Double,
+        lng: Double,
+        maxDistanceM: Double,
+    ): TrackGeometry.Projection? {
+        if (cellKeys.isEmpty()) {
+            return null
+        }
+
+        val centerRow = getRow(lat)
+        val centerColumn = getColumn(lng)
+        val maxRing = (maxDistanceM / cellSizeM).toInt() + 1
+        var closestProjection: TrackGeometry.Projection? = null
+
+        for (ring in 0..maxRing) {
+            forEachRingCell(centerRow, centerColumn, ring) { cellIndex ->
+                for (i in cellOffsets[cellIndex] until cellOffsets[cellIndex + 1]) {
+                    val projection = geometry.getProjection(lat, lng, cellSegments[i])
+                    if (projection.distanceM <= maxDistanceM
+                        && (closestProjection == null
+                                || projection.distanceM < closestProjection!!.distanceM)
+                    ) {
+                        closestProjection = projection
+                    }
+                }
+            }
+
+            // Cells of the further rings are at least this far.
+            if (closestProjection != null && closestProjection!!.distanceM <= ring * cellSizeM) {
+                break
+            }
+        }
+
+        return closestProjection
+    }
+
+    /**
+     * @return distance from the given point to the track
+     * if it is not further than [maxDistanceM], null otherwise
+     */
+    fun getDistanceToTrackM(
+        geometry: TrackGeometry,
+        lat: Double,
+        lng: Double,
+        maxDistanceM: Double,
+    ): Double? =
+        getNearestSegment(geometry, lat, lng, maxDistanceM)?.distanceM
+
+    /**
+     * @return sorted indices of the segments which may cross the given box,
+     * the ones crossing it are guaranteed to be there
+     */
+    fun getSegmentsInBox(
+        minLat: Double,
+        minLng: Double,
+        maxLat: Double,
+        maxLng: Double,
+    ): IntArray {
+        val fromRow = getRow(minLat).coerceAtLeast(0)
+        val toRow = getRow(maxLat).coerceAtMost(rowCount - 1)
+        val fromColumn = getColumn(minLng).coerceAtLeast(0)
+        val toColumn = getColumn(maxLng).coerceAtMost(columnCount - 1)
+        if (fromRow > toRow || fromColumn > toColumn) {
+            return IntArray(0)
+        }
+
+        val segments = sortedSetOf<Int>()
+        for (row in fromRow..toRow) {
+            // Cells of a row are contiguous in the sorted keys.
+            var cellIndex = findCellIndex(getCellKey(row, fromColumn))
+                .let { if (it < 0) -(it + 1) else it }
+            val toKey = getCellKey(row, toColumn)
+            while (cellIndex < cellKeys.size && cellKeys[cellIndex] <= toKey) {
+                for (i in cellOffsets[cellIndex] until cellOffsets[cellIndex + 1]) {
+                    segments.add(cellSegments[i])
+                }
+                cellIndex++
+            }
+        }
+
+        return segments.toIntArray()
+    }
+
+    /**
+     * @return sorted indices of the segments which may be within the [radiusM]
+     * from the given point, the ones within it are guaranteed to be there
+     */
+    fun getSegmentsAround(
+        lat: Double,
+        lng: Double,
+        radiusM: Double,
+    ): IntArray {
+        val radiusLatDeg = radiusM / METERS_PER_LAT_DEGREE
+        val radiusLngDeg = radiusM / (METERS_PER_LAT_DEGREE * cos(Math.toRadians(lat)))
+
+        return getSegmentsInBox(
+            minLat = lat - radiusLatDeg,
+            minLng = lng - radiusLngDeg,
+            maxLat = lat + radiusLatDeg,
+            maxLng = lng + radiusLngDeg,
+        )
+    }
+
+    fun writeToFile(file: File) {
+        DataOutputStream(file.outputStream().buffered()).use { output ->
+            output.writeInt(VERSION)
+            output.writeDouble(originLat)
+            output.writeDouble(originLng)
+            output.writeDouble(cellSizeLatDeg)
+            output.writeDouble(cellSizeLngDeg)
+            output.writeDouble(cellSizeM)
+            output.writeInt(rowCount)
+            output.writeInt(columnCount)
+            output.writeInt(cellKeys.size)
+            cellKeys.forEach(output::writeLong)
+            cellOffsets.forEach(output::writeInt)
+            cellSegments.forEach(output::writeInt)
+        }
+    }
+
+    private inline fun forEachRingCell(
+        centerRow: Int,
+        centerColumn: Int,
+        ring: Int,
+        block: (cellIndex: Int) -> Unit,
+    ) {
+        for (row in centerRow - ring..centerRow + ring) {
+            val isEdgeRow = abs(row - centerRow) == ring
+            val columnStep = if (isEdgeRow) 1 else max(2 * ring, 1)
+            for (column in centerColumn - ring..centerColumn + ring step columnStep) {
+                val cellIndex = findCellIndex(getCellKey(row, column))
+                if (cellIndex >= 0) {
+                    block(cellIndex)
+                }
+            }
+        }
+    }
+
+    private fun findCellIndex(key: Long): Int =
+        cellKeys.binarySearch(key)
+
+    private fun getRow(lat: Double): Int =
+        floor((lat - originLat) / cellSizeLatDeg).toInt()
+
+    private fun getColumn(lng: Double): Int =
+        floor((lng - originLng) / cellSizeLngDeg).toInt()
+
+    companion object {
+        private const val VERSION = 1
+        private const val METERS_PER_LAT_DEGREE = 111320.0
+
+        /**
+         * Unique for any row and column, sorted by the row and then by the column
+         * for the non-negative ones.
+         */
+        private fun getCellKey(row: Int, column: Int): Long =
+            (row.toLong() shl 32) or (column.toLong() and 0xFFFFFFFFL)
+
+        /**
+         * Walks the cells crossed by the line between the given points,
+         * which coordinates are in the cell sides, from the cell of the first point
+         * to the cell of the last one.
+         */
+        private inline fun forEachCrossedCell(
+            fromX: Double,
+            fromY: Double,
+            toX: Double,
+            toY: Double,
+            block: (row: Int, column: Int) -> Unit,
+        ) {
+            var column = floor(fromX).toInt()
+            var row = floor(fromY).toInt()
+            val toColumn = floor(toX).toInt()
+            val toRow = floor(toY).toInt()
+            val dX = toX - fromX
+            val dY = toY - fromY
+            val columnStep = if (dX > 0) 1 else -1
+            val rowStep = if (dY > 0) 1 else -1
+
+            // Line fraction at which the next column and row borders are crossed,
+            // and the fraction between the borders.
+            val fractionStepX = if (dX != 0.0) abs(1 / dX) else Double.POSITIVE_INFINITY
+            val fractionStepY = if (dY != 0.0) abs(1 / dY) else Double.POSITIVE_INFINITY
+            var nextFractionX =
+                if (dX != 0.0)
+                    ((if (dX > 0) column + 1 else column) - fromX) / dX
+                else
+                    Double.POSITIVE_INFINITY
+            var nextFractionY =
+                if (dY != 0.0)
+                    ((if (dY > 0) row + 1 else row) - fromY) / dY
+                else
+                    Double.POSITIVE_INFINITY
+
+            block(row, column)
+
+            // Each step crosses either a column or a row border.
+            // Rounding errors must not lead the walk past the last cell.
+            repeat(abs(toColumn - column) + abs(toRow - row)) {
+                if (row == toRow || column != toColumn && nextFractionX < nextFractionY) {
+                    column += columnStep
+                    nextFractionX += fractionStepX
+                } else {
+                    row += rowStep
+                    nextFractionY += fractionStepY
+                }
+
+                block(row, column)
+            }
+        }
+
+        /**
+         * @param cellSizeM min size of a cell side. Smaller cells mean less segments to check
+         * per query but more cells to store.
+         */
+        fun build(
+            geometry: TrackGeometry,
+            cellSizeM: Double = 100.0,
+        ): TrackSpatialIndex {
+            val lats = geometry.lats
+            val lngs = geometry.lngs
+
+            val originLat = lats.minOrNull() ?: 0.0
+            val originLng = lngs.minOrNull() ?: 0.0
+            val maxLat = lats.maxOrNull() ?: 0.0
+            val maxLng = lngs.maxOrNull() ?: 0.0
+
+            // Scale the longitude step at the latitude furthest from the equator,
+            // so the cells are not narrower than the cellSizeM anywhere on the track.
+            val maxAbsLat = max(abs(originLat), abs(maxLat)).coerceAtMost(89.0)
+            val cellSizeLatDeg = cellSizeM / METERS_PER_LAT_DEGREE
+            val cellSizeLngDeg = cellSizeM / (METERS_PER_LAT_DEGREE * cos(Math.toRadians(maxAbsLat)))
+            val rowCount = floor((maxLat - originLat) / cellSizeLatDeg).toInt() + 1
+            val columnCount = floor((maxLng - originLng) / cellSizeLngDeg).toInt() + 1
+
+            // Register each segment only in the cells it crosses,
+            // as the bounding box of a long diagonal segment has lots of cells.
+            val segmentsByKey = HashMap<Long, MutableList<Int>>()
+            for (segmentIndex in 0 until geometry.segmentCount) {
+                forEachCrossedCell(
+                    fromX = (lngs[segmentIndex] - originLng) / cellSizeLngDeg,
+                    fromY = (lats[segmentIndex] - originLat) / cellSizeLatDeg,
+                    toX = (lngs[segmentIndex + 1] - originLng) / cellSizeLngDeg,
+                    toY = (lats[segmentIndex + 1] - originLat) / cellSizeLatDeg,
+                ) { row, column ->
+                    segmentsByKey
+                        .getOrPut(getCellKey(row, column)) { mutableListOf() }
+                        .add(segmentIndex)
+                }
+            }
+
+            val cellKeys = segmentsByKey.keys.toLongArray().apply { sort() }
+            val cellOffsets = IntArray(cellKeys.size + 1)
+            val cellSegments = IntArray(segmentsByKey.values.sumOf { it.size })
+            var offset = 0
+            cellKeys.forEachIndexed { cellIndex, key ->
+                cellOffsets[cellIndex] = offset
+                segmentsByKey.getValue(key).forEach { cellSegments[offset++] = it }
+            }
+            cellOffsets[cellKeys.size] = offset
+
+            return TrackSpatialIndex(
+                originLat = originLat,
+                originLng = originLng,
+                cellSizeLatDeg = cellSizeLatDeg,
+                cellSizeLngDeg = cellSizeLngDeg,
+                cellSizeM = cellSizeM,
+                rowCount = rowCount,
+                columnCount = columnCount,
+                cellKeys = cellKeys,
+                cellOffsets = cellOffsets,
+                cellSegments = cellSegments,
+            )
+        }
+
+        /**
+         * @throws IOException if the file can't be read or is of an unknown version
+         */
+        fun readFromFile(file: File): TrackSpatialIndex =
+            DataInputStream(file.inputStream().buffered()).use { input ->
+                val version = input.readInt()
+                if (version != VERSION) {
+                    throw IOException("Unknown version $version")
+                }
+
+                val originLat = input.readDouble()
+                val originLng = input.readDouble()
+                val cellSizeLatDeg = input.readDouble()
+                val cellSizeLngDeg = input.readDouble()
+                val cellSizeM = input.readDouble()
+                val rowCount = input.readInt()
+                val columnCount = input.readInt()
+                val cellCount = input.readInt()
+                val cellKeys = LongArray(cellCount) { input.readLong() }
+                val cellOffsets = IntArray(cellCount + 1) { input.readInt() }
+                val cellSegments = IntArray(cellOffsets[cellCount]) { input.readInt() }
+
+                TrackSpatialIndex(
+                    originLat = originLat,
+                    originLng = originLng,
+                    cellSizeLatDeg = cellSizeLatDeg,
+                    cellSizeLngDeg = cellSizeLngDeg,
+                    cellSizeM = cellSizeM,
+                    rowCount = rowCount,
+                    columnCount = columnCount,
+                    cellKeys = cellKeys,
+                    cellOffsets = cellOffsets,
+                    cellSegments = cellSegments,
+                )
+            }
+    }
+}
@@ -1,6 +1,7 @@
 package ua.com.radiokot.osmanddisplay.features.track.data.storage
 
 import android.graphics.Bitmap
+import com.mapbox.geojson.Feature
 import com.mapbox.geojson.GeoJson
 import com.mapbox.geojson.LineString
 import com.mapbox.geojson.MultiPoint
@@ -13,6 +14,9 @@ import ua.com.radiokot.osmanddisplay.base.data.storage.MultipleItemsRepository
 import ua.com.radiokot.osmanddisplay.base.data.storage.RepositoryCache
 import ua.com.radiokot.osmanddisplay.base.extension.kLogger
 import ua.com.radiokot.osmanddisplay.features.track.data.model.ImportedTrackRecord
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackDistanceIndex
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackSpatialIndex
 import java.io.File
 import java.util.Date
 
@@ -50,6 +54,7 @@ class ImportedTracksRepository(
         poi: MultiPoint,
         thumbnail: Bitmap,
         onlinePreviewUrl: String?,
+        originalGeometry: LineString? = null,
     ): Single<ImportedTrackRecord> {
         val importedAt = Date()
         val id = importedAt.time.toString()
@@ -75,6 +80,24 @@ class ImportedTracksRepository(
                 )
                     .map { thumbnailImageFile to it }
             }
+            .flatMap { files ->
+                if (originalGeometry != null)
+                    writeGeoJsonFile(
+                        geoJson = Feature.fromGeometry(originalGeometry),
+                        fileName = ImportedTrackRecord.getOriginalTrackFile(directory, id).name,
+                    )
+                        .map { files }
+                else
+                    Single.just(files)
+            }
+            .flatMap { (thumbnailImageFile, geoJsonFile) ->
+                writeIndexFiles(
+                    geometry = geometry,
+                    poi = poi,
+                    id = id,
+                )
+                    .toSingleDefault(thumbnailImageFile to geoJsonFile)
+            }
             .map { (thumbnailImageFile, geoJsonFile) ->
                 ImportedTrackRecord(
                     name = name,
@@ -134,6 +157,25 @@ class ImportedTracksRepository(
         .toSingle()
         .subscribeOn(Schedulers.io())
 
+    /**
+     * Writes the indices which spare the track geometry scans
+     * when locating the rider on the track.
+     */
+    private fun writeIndexFiles(
+        geometry: LineString,
+        poi: MultiPoint,
+        id: String,
+    ): Completable = {
+        val trackGeometry = TrackGeometry(geometry.coordinates())
+        val spatialIndex = TrackSpatialIndex.build(trackGeometry)
+        spatialIndex.writeToFile(ImportedTrackRecord.getSpatialIndexFile(directory, id))
+        TrackDistanceIndex
+            .build(trackGeometry, spatialIndex, poi.coordinates())
+            .writeToFile(ImportedTrackRecord.getDistanceIndexFile(directory, id))
+    }
+        .toCompletable()
+        .subscribeOn(Schedulers.io())
+
     fun clear(): Completable = {
         directory
             .listFiles()
@@ -9,6 +9,8 @@ import com.mapbox.geojson.LineString
 import com.mapbox.geojson.MultiPoint
 import io.reactivex.Single
 import io.reactivex.disposables.Disposable
+import io.reactivex.rxkotlin.toSingle
+import io.reactivex.schedulers.Schedulers
 import ua.com.radiokot.osmanddisplay.base.extension.kLogger
 import ua.com.radiokot.osmanddisplay.features.track.data.model.ImportedTrackRecord
 import ua.com.radiokot.osmanddisplay.features.track.data.storage.ImportedTracksRepository
@@ -16,8 +18,11 @@ import ua.com.radiokot.osmanddisplay.features.track.data.storage.ImportedTracksR
 /**
  * Imports a track defined by [name], [geometry] and [thumbnail] to the
  * [importedTracksRepository] and downloads map tiles for it.
+ * The track is simplified by the [trackSimplifier] first,
+ * as the map frames can't show more details anyway.
  *
  * @param onlinePreviewUrl optional URL of the online track preview
+ * @param keepOriginalGeometry whether to also store the geometry as it was before the simplification
  */
 class ImportTrackUseCase(
     private val name: String,
@@ -28,13 +33,24 @@ class ImportTrackUseCase(
     private val importedTracksRepository: ImportedTracksRepository,
     private val tileStore: TileStore,
     private val tilesetDescriptor: TilesetDescriptor,
+    private val trackSimplifier: TrackSimplifier,
+    private val keepOriginalGeometry: Boolean,
 ) {
     private val logger = kLogger("ImportTrackUC")
 
+    private lateinit var simplifiedGeometry: LineString
+    private lateinit var simplifiedPoi: MultiPoint
     private lateinit var importedTrack: ImportedTrackRecord
 
     operator fun invoke(): Single<ImportedTrackRecord> {
-        return importTrack()
+        return simplifyTrack()
+            .doOnSuccess { (geometry, poi) ->
+                simplifiedGeometry = geometry
+                simplifiedPoi = poi
+            }
+            .flatMap {
+                importTrack()
+            }
             .doOnSuccess { importedTrack = it }
             .flatMap {
                 downloadTiles()
@@ -43,13 +59,28 @@ class ImportTrackUseCase(
     }
 
 
+    private fun simplifyTrack(): Single<Pair<LineString, MultiPoint>> = {
+        trackSimplifier.simplify(geometry) to trackSimplifier.quantize(poi)
+    }
+        .toSingle()
+        .subscribeOn(Schedulers.computation())
+        .doOnSuccess { (simplifiedGeometry, _) ->
+            logger.debug {
+                "simplifyTrack(): simplified:" +
+                        "\noriginalPoints=${geometry.coordinates().size}," +
+                        "\nsimplifiedPoints=${simplifiedGeometry.coordinates().size}," +
+                        "\ncoordinateDecimals=${trackSimplifier.coordinateDecimals}"
+            }
+        }
+
     private fun importTrack(): Single<ImportedTrackRecord> {
         return importedTracksRepository.importTrack(
             name = name,
-            geometry = geometry,
-            poi = poi,
+            geometry = simplifiedGeometry,
+            poi = simplifiedPoi,
             thumbnail = thumbnail,
             onlinePreviewUrl = onlinePreviewUrl,
+            originalGeometry = geometry.takeIf { keepOriginalGeometry },
         )
     }
 
@@ -58,7 +89,7 @@ class ImportTrackUseCase(
             importedTrack.id,
             TileRegionLoadOptions.Builder()
                 .descriptors(listOf(tilesetDescriptor))
-                .geometry(geometry)
+                .geometry(simplifiedGeometry)
                 .acceptExpired(false)
                 .networkRestriction(NetworkRestriction.NONE)
                 .build(),
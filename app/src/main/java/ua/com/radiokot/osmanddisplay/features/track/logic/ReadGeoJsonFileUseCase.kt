@@ -1,82 +1,299 @@
 package ua.com.radiokot.osmanddisplay.features.track.logic
 
-import com.google.gson.Gson
-import com.google.gson.JsonObject
-import com.mapbox.geojson.Feature
-import com.mapbox.geojson.FeatureCollection
-import com.mapbox.geojson.LineString
-import com.mapbox.geojson.MultiPoint
-import com.mapbox.geojson.Point
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
 import io.reactivex.Single
 import io.reactivex.rxkotlin.toSingle
 import io.reactivex.schedulers.Schedulers
+import ua.com.radiokot.osmanddisplay.features.track.data.model.CoordinatesBuffer
 import ua.com.radiokot.osmanddisplay.features.track.data.model.GeoJsonTrackData
 import java.io.InputStream
-import java.io.InputStreamReader
 
+/**
+ * Reads GeoJSON track in a single streaming pass, without building the feature tree.
+ *
+ * The track is the first LineString feature of a FeatureCollection,
+ * or the LineString of a single Feature. Point features of a FeatureCollection
+ * are read as POI. Other features are skipped.
+ */
 class ReadGeoJsonFileUseCase {
+    /**
+     * A feature which geometry is read only if it may be the track or a POI.
+     */
+    private class ReadFeature(
+        val geometryType: String?,
+        val coordinates: CoordinatesBuffer?,
+        val name: String?,
+    )
+
     operator fun invoke(
         inputStream: InputStream,
     ): Single<GeoJsonTrackData> = {
-        val content = inputStream.use {
-            InputStreamReader(it).readText()
+        JsonReader(inputStream.reader(Charsets.UTF_8).buffered()).use { reader ->
+            // Tolerates trailing commas and other mistakes of the handwritten files.
+            reader.isLenient = true
+            readGeoJson(reader)
         }
+    }.toSingle().subscribeOn(Schedulers.io())
+
+    private fun readGeoJson(reader: JsonReader): GeoJsonTrackData {
+        var geoJsonType: String? = null
+        var collectionTrackFeature: ReadFeature? = null
+        val collectionPoi = CoordinatesBuffer(initialCapacity = 16)
+
+        // Keys of the root are read in any order,
+        // so the root may turn out to be a single Feature once its type is read.
+        var rootGeometryType: String? = null
+        var rootCoordinates: CoordinatesBuffer? = null
+        var rootName: String? = null
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                "type" ->
+                    geoJsonType = reader.nextStringOrNull()
+
+                "features" -> {
+                    reader.beginArray()
+                    while (reader.hasNext()) {
+                        // Arbitrary file parsing result may contain null features.
+                        if (reader.peek() == JsonToken.NULL) {
+                            reader.nextNull()
+                            continue
+                        }
+
+                        val feature = readFeature(
+                            reader = reader,
+                            isTrackFound = collectionTrackFeature != null,
+                        )
+                        val coordinates = feature.coordinates
+                            ?: continue
 
-        val jsonContent = Gson().fromJson(content, JsonObject::class.java)
+                        when (feature.geometryType) {
+                            "LineString" ->
+                                if (collectionTrackFeature == null) {
+                                    collectionTrackFeature = feature
+                                }
 
-        val geoJsonType = jsonContent.get("type")?.asString
+                            "Point" ->
+                                if (!coordinates.isEmpty()) {
+                                    collectionPoi.add(coordinates.getLng(0), coordinates.getLat(0))
+                                }
+                        }
+                    }
+                    reader.endArray()
+                }
+
+                "geometry" ->
+                    readGeometry(reader, isTrackFound = false)?.also { (type, coordinates) ->
+                        rootGeometryType = type
+                        rootCoordinates = coordinates
+                    }
+
+                "properties" ->
+                    rootName = readName(reader)
+
+                else ->
+                    reader.skipValue()
+            }
+        }
+        reader.endObject()
 
         checkNotNull(geoJsonType) {
             "GeoJSON content must have a type"
         }
 
-        val featureCollection: FeatureCollection? =
-            if (geoJsonType == "FeatureCollection")
-                FeatureCollection.fromJson(content)
-            else
-                null
-
-        val trackFeature: Feature? = when {
-            featureCollection != null ->
-                featureCollection
-                    .features()
-                    // Safe calls are required.
-                    // Arbitrary file parsing result may contain null features.
-                    ?.find { it?.geometry() is LineString }
+        val trackFeature: ReadFeature?
+        val poi: CoordinatesBuffer
+        when (geoJsonType) {
+            "FeatureCollection" -> {
+                trackFeature = collectionTrackFeature
+                poi = collectionPoi
+            }
 
-            geoJsonType == "Feature" ->
-                Feature.fromJson(content)
+            "Feature" -> {
+                trackFeature = ReadFeature(
+                    geometryType = rootGeometryType,
+                    coordinates = rootCoordinates,
+                    name = rootName,
+                ).takeIf { it.geometryType == "LineString" }
+                poi = CoordinatesBuffer(initialCapacity = 0)
+            }
 
-            else ->
-                null
+            else -> {
+                trackFeature = null
+                poi = CoordinatesBuffer(initialCapacity = 0)
+            }
         }
 
-        checkNotNull(trackFeature) {
+        val track = trackFeature?.coordinates
+        checkNotNull(track) {
             "GeoJSON content must have at leas one LineString (track) feature"
         }
 
-        val track = trackFeature.geometry() as LineString
+        return GeoJsonTrackData(
+            name = trackFeature?.name
+                ?.takeIf(String::isNotEmpty),
+            track = track,
+            poi = poi,
+        )
+    }
+
+    /**
+     * @param isTrackFound if set, LineString coordinates are skipped
+     */
+    private fun readFeature(
+        reader: JsonReader,
+        isTrackFound: Boolean,
+    ): ReadFeature {
+        var geometry: Pair<String?, CoordinatesBuffer?>? = null
+        var name: String? = null
 
-        val poi: MultiPoint =
-            featureCollection
-                ?.features()
-                // Safe calls are required. See above.
-                ?.mapNotNull { it?.geometry() }
-                ?.filterIsInstance<Point>()
-                .let { MultiPoint.fromLngLats(it ?: emptyList()) }
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                "geometry" ->
+                    geometry = readGeometry(reader, isTrackFound)
 
-        val name = trackFeature
-            .getStringProperty("name")
-            ?.takeIf(String::isNotEmpty)
+                "properties" ->
+                    name = readName(reader)
 
-        GeoJsonTrackData(
+                else ->
+                    reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        return ReadFeature(
+            geometryType = geometry?.first,
+            coordinates = geometry?.second,
             name = name,
-            track = track,
-            poi = poi,
         )
-    }.toSingle().subscribeOn(Schedulers.io())
+    }
+
+    /**
+     * @return geometry type and its coordinates if the geometry may be the track or a POI,
+     * or null if the geometry is null
+     */
+    private fun readGeometry(
+        reader: JsonReader,
+        isTrackFound: Boolean,
+    ): Pair<String?, CoordinatesBuffer?>? {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull()
+            return null
+        }
+
+        var type: String? = null
+        var coordinates: CoordinatesBuffer? = null
 
-    private companion object {
-        private const val MAX_FILE_SIZE_BYTES = 1 * 1024 * 1024
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                "type" ->
+                    type = reader.nextStringOrNull()
+
+                "coordinates" ->
+                    // The type usually goes first, which allows skipping the needless coordinates.
+                    if (type == null || type == "Point" || type == "LineString" && !isTrackFound) {
+                        coordinates = readPositions(reader)
+                    } else {
+                        reader.skipValue()
+                    }
+
+                else ->
+                    reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        return type to coordinates?.takeIf {
+            type == "Point" || type == "LineString" && !isTrackFound
+        }
+    }
+
+    /**
+     * Reads a position or an array of positions, which are the coordinates
+     * of Point, LineString and MultiPoint geometries.
+     * Deeper nested coordinates are skipped.
+     *
+     * @return read positions, which are empty for the skipped coordinates
+     */
+    private fun readPositions(reader: JsonReader): CoordinatesBuffer {
+        val positions = CoordinatesBuffer()
+
+        reader.beginArray()
+        if (reader.peek() == JsonToken.NUMBER) {
+            readPosition(reader, positions, isArrayBegun = true)
+        } else {
+            while (reader.hasNext()) {
+                if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    readPosition(reader, positions, isArrayBegun = false)
+                } else {
+                    reader.skipValue()
+                }
+            }
+        }
+        reader.endArray()
+
+        return positions
+    }
+
+    /**
+     * Reads the longitude and the latitude of the position, skipping the altitude if any.
+     * Positions which are not numbers, such as nested arrays, are skipped.
+     */
+    private fun readPosition(
+        reader: JsonReader,
+        positions: CoordinatesBuffer,
+        isArrayBegun: Boolean,
+    ) {
+        if (!isArrayBegun) {
+            reader.beginArray()
+        }
+
+        if (reader.peek() == JsonToken.NUMBER) {
+            val lng = reader.nextDouble()
+            val lat = reader.nextDouble()
+            positions.add(lng, lat)
+        }
+        while (reader.hasNext()) {
+            reader.skipValue()
+        }
+
+        if (!isArrayBegun) {
+            reader.endArray()
+        }
     }
+
+    /**
+     * @return the name property if the properties are an object
+     */
+    private fun readName(reader: JsonReader): String? {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue()
+            return null
+        }
+
+        var name: String? = null
+        reader.beginObject()
+        while (reader.hasNext()) {
+            if (reader.nextName() == "name") {
+                name = reader.nextStringOrNull()
+            } else {
+                reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        return name
+    }
+
+    private fun JsonReader.nextStringOrNull(): String? =
+        if (peek() == JsonToken.STRING) {
+            nextString()
+        } else {
+            skipValue()
+            null
+        }
 }
@@ -1,27 +1,124 @@
 package ua.com.radiokot.osmanddisplay.features.track.logic
 
-import com.fasterxml.jackson.dataformat.xml.XmlMapper
 import io.reactivex.Single
 import io.reactivex.rxkotlin.toSingle
 import io.reactivex.schedulers.Schedulers
-import ua.com.radiokot.osmanddisplay.features.track.data.model.GpxData
+import ua.com.radiokot.osmanddisplay.features.track.data.model.CoordinatesBuffer
 import ua.com.radiokot.osmanddisplay.features.track.data.model.GpxTrackData
 import java.io.InputStream
-import java.io.InputStreamReader
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamConstants
+import javax.xml.stream.XMLStreamReader
 
+/**
+ * Reads GPX track streaming, without loading the whole file
+ * or creating an object per point.
+ *
+ * Points of all the tracks (`trk`) are joined into a single line.
+ * If there are no tracks, the route (`rte`) points are taken instead.
+ * Waypoints (`wpt`) are read as POI.
+ */
 class ReadGpxFileUseCase(
-    private val xmlMapper: XmlMapper,
+    private val xmlInputFactory: XMLInputFactory,
 ) {
     operator fun invoke(
         inputStream: InputStream,
     ): Single<GpxTrackData> = {
-        val content = inputStream.use {
-            InputStreamReader(it).readText()
+        inputStream.use {
+            val reader = xmlInputFactory.createXMLStreamReader(it)
+            try {
+                readGpx(reader)
+            } finally {
+                reader.close()
+            }
         }
-
-        xmlMapper.readValue(
-            content,
-            GpxData::class.java,
-        ).let(::GpxTrackData)
     }.toSingle().subscribeOn(Schedulers.io())
+
+    private fun readGpx(reader: XMLStreamReader): GpxTrackData {
+        val trackPoints = CoordinatesBuffer()
+        val routePoints = CoordinatesBuffer()
+        val waypoints = CoordinatesBuffer(initialCapacity = 16)
+        var metadataName: String? = null
+        var trackName: String? = null
+        var routeName: String? = null
+        var link: String? = null
+
+        // Local names of the elements the reader is in.
+        val path = ArrayList<String>()
+
+        while (reader.hasNext()) {
+            when (reader.next()) {
+                XMLStreamConstants.START_ELEMENT -> {
+                    val elementName = reader.localName
+                    val parentName = path.lastOrNull()
+
+                    if (elementName == "name" && parentName in NAMED_ELEMENTS) {
+                        // Reads up to the end of the element, so it is not added to the path.
+                        val name = reader.elementText.trim()
+                        when (parentName) {
+                            "metadata" -> metadataName = metadataName ?: name
+                            "trk" -> trackName = trackName ?: name
+                            "rte" -> routeName = routeName ?: name
+                        }
+                        continue
+                    }
+
+                    path.add(elementName)
+
+                    when (elementName) {
+                        "trkpt" ->
+                            trackPoints.addPoint(reader)
+                        "rtept" ->
+                            routePoints.addPoint(reader)
+                        "wpt" ->
+                            waypoints.addPoint(reader)
+                        "link" ->
+                            if (parentName == "metadata" && link == null) {
+                                link = reader.getAttributeValue(null, "href")
+                            }
+                    }
+                }
+
+                XMLStreamConstants.END_ELEMENT ->
+                    path.removeLast()
+            }
+        }
+
+        val track =
+            if (!trackPoints.isEmpty())
+                trackPoints
+            else
+                routePoints
+
+        check(!track.isEmpty()) {
+            "GPX content must have at least one track or route point"
+        }
+
+        return GpxTrackData(
+            name = (metadataName ?: trackName ?: routeName)
+                ?.takeIf(String::isNotEmpty),
+            track = track,
+            poi = waypoints,
+            link = link
+                ?.takeIf(String::isNotEmpty),
+        )
+    }
+
+    private fun CoordinatesBuffer.addPoint(reader: XMLStreamReader) {
+        val lat = checkNotNull(reader.getAttributeValue(null, "lat")) {
+            "Point must have a lat attribute"
+        }
+        val lon = checkNotNull(reader.getAttributeValue(null, "lon")) {
+            "Point must have a lon attribute"
+        }
+
+        add(
+            lng = lon.trim().toDouble(),
+            lat = lat.trim().toDouble(),
+        )
+    }
+
+    private companion object {
+        private val NAMED_ELEMENTS = setOf("metadata", "trk", "rte")
+    }
 }
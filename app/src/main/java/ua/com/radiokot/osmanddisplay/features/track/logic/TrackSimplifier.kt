@@ -0,0 +1,164 @@
+package ua.com.radiokot.osmanddisplay.features.track.logic
+
+import com.mapbox.geojson.LineString
+import com.mapbox.geojson.MultiPoint
+import com.mapbox.geojson.Point
+import kotlin.math.ceil
+import kotlin.math.cos
+import kotlin.math.log10
+import kotlin.math.pow
+import kotlin.math.roundToLong
+
+/**
+ * Simplifies tracks to what can be seen on the map frame at the camera zoom.
+ *
+ * The line is simplified with Douglas–Peucker, so no vertex deviates
+ * from it by more than [maxDeviationPx] at the [cameraZoom].
+ * The coordinates are then rounded to the precision
+ * which is still much finer than the deviation.
+ *
+ * @param cameraZoom zoom of the map frames
+ * @param pixelRatio ratio of the map snapshot pixels to the map tile pixels
+ * @param maxDeviationPx max distance from the original line in the snapshot pixels
+ */
+class TrackSimplifier(
+    cameraZoom: Double,
+    pixelRatio: Double,
+    maxDeviationPx: Double = 0.5,
+) {
+    private val maxDeviationAtEquatorM =
+        EARTH_CIRCUMFERENCE_M / (TILE_SIZE_PX * 2.0.pow(cameraZoom) * pixelRatio) * maxDeviationPx
+
+    /**
+     * Count of the decimal places of the coordinates,
+     * which rounding error is within a quarter of the deviation at the equator.
+     */
+    val coordinateDecimals: Int =
+        ceil(log10(METERS_PER_DEGREE * 2 / maxDeviationAtEquatorM))
+            .toInt()
+            .coerceIn(MIN_COORDINATE_DECIMALS, MAX_COORDINATE_DECIMALS)
+
+    private val coordinateScale = 10.0.pow(coordinateDecimals)
+
+    fun simplify(line: LineString): LineString {
+        val points = line.coordinates()
+        if (points.size <= 2) {
+            return LineString.fromLngLats(points.map(::quantize))
+        }
+
+        val isKept = getDouglasPeuckerKeptPoints(points)
+
+        val simplifiedPoints = ArrayList<Point>()
+        points.forEachIndexed { i, point ->
+            if (!isKept[i]) {
+                return@forEachIndexed
+            }
+
+            val quantizedPoint = quantize(point)
+            val previousPoint = simplifiedPoints.lastOrNull()
+            if (previousPoint == null
+                || previousPoint.longitude() != quantizedPoint.longitude()
+                || previousPoint.latitude() != quantizedPoint.latitude()
+            ) {
+                simplifiedPoints.add(quantizedPoint)
+            }
+        }
+
+        // LineString must have at least 2 points, even if they are the same.
+        if (simplifiedPoints.size < 2) {
+            simplifiedPoints.add(quantize(points.last()))
+        }
+
+        return LineString.fromLngLats(simplifiedPoints)
+    }
+
+    fun quantize(multiPoint: MultiPoint): MultiPoint =
+        MultiPoint.fromLngLats(multiPoint.coordinates().map(::quantize))
+
+    private fun quantize(point: Point): Point =
+        Point.fromLngLat(
+            (point.longitude() * coordinateScale).roundToLong() / coordinateScale,
+            (point.latitude() * coordinateScale).roundToLong() / coordinateScale,
+        )
+
+    /**
+     * @return flags of the points to keep, found iteratively
+     * on the points projected to a local plane in meters
+     */
+    private fun getDouglasPeuckerKeptPoints(points: List<Point>): BooleanArray {
+        val midLatRad = Math.toRadians(
+            (points.minOf(Point::latitude) + points.maxOf(Point::latitude)) / 2
+        )
+        val lngScale = METERS_PER_DEGREE * cos(midLatRad)
+        val xs = DoubleArray(points.size) { i -> points[i].longitude() * lngScale }
+        val ys = DoubleArray(points.size) { i -> points[i].latitude() * METERS_PER_DEGREE }
+        val maxDeviationM = maxDeviationAtEquatorM * cos(midLatRad)
+        val maxDeviationSquared = maxDeviationM * maxDeviationM
+
+        val isKept = BooleanArray(points.size)
+        isKept[0] = true
+        isKept[points.size - 1] = true
+
+        // Pairs of the range start and end indices.
+        val ranges = ArrayDeque<Int>()
+        ranges.addLast(0)
+        ranges.addLast(points.size - 1)
+
+        while (ranges.isNotEmpty()) {
+            val end = ranges.removeLast()
+            val start = ranges.removeLast()
+
+            var farthestIndex = -1
+            var farthestDistanceSquared = maxDeviationSquared
+            for (i in start + 1 until end) {
+                val distanceSquared = getSegmentDistanceSquared(
+                    x = xs[i], y = ys[i],
+                    x1 = xs[start], y1 = ys[start],
+                    x2 = xs[end], y2 = ys[end],
+                )
+                if (distanceSquared > farthestDistanceSquared) {
+                    farthestIndex = i
+                    farthestDistanceSquared = distanceSquared
+                }
+            }
+
+            if (farthestIndex != -1) {
+                isKept[farthestIndex] = true
+                ranges.addLast(start)
+                ranges.addLast(farthestIndex)
+                ranges.addLast(farthestIndex)
+                ranges.addLast(end)
+            }
+        }
+
+        return isKept
+    }
+
+    private fun getSegmentDistanceSquared(
+        x: Double, y: Double,
+        x1: Double, y1: Double,
+        x2: Double, y2: Double,
+    ): Double {
+        val dx = x2 - x1
+        val dy = y2 - y1
+        val lengthSquared = dx * dx + dy * dy
+
+        val fraction =
+            if (lengthSquared == 0.0)
+                0.0
+            else
+                (((x - x1) * dx + (y - y1) * dy) / lengthSquared).coerceIn(0.0, 1.0)
+
+        val distanceX = x - (x1 + fraction * dx)
+        val distanceY = y - (y1 + fraction * dy)
+        return distanceX * distanceX + distanceY * distanceY
+    }
+
+    private companion object {
+        private const val EARTH_CIRCUMFERENCE_M = 40075016.686
+        private const val METERS_PER_DEGREE = EARTH_CIRCUMFERENCE_M / 360
+        private const val TILE_SIZE_PX = 512
+        private const val MIN_COORDINATE_DECIMALS = 5
+        private const val MAX_COORDINATE_DECIMALS = 7
+    }
+}
@@ -13,7 +13,6 @@ import com.google.android.material.progressindicator.CircularProgressIndicatorSp
 import com.google.android.material.progressindicator.IndeterminateDrawable
 import com.mapbox.geojson.LineString
 import com.mapbox.geojson.MultiPoint
-import com.mapbox.geojson.Point
 import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.rxkotlin.addTo
 import io.reactivex.rxkotlin.subscribeBy
@@ -33,8 +32,7 @@ import ua.com.radiokot.osmanddisplay.base.util.localfile.LocalFile
 import ua.com.radiokot.osmanddisplay.base.view.BaseActivity
 import ua.com.radiokot.osmanddisplay.di.InjectedSnapshotter
 import ua.com.radiokot.osmanddisplay.features.map.logic.FriendlySnapshotter
-import ua.com.radiokot.osmanddisplay.features.track.data.model.GeoJsonTrackData
-import ua.com.radiokot.osmanddisplay.features.track.data.model.GpxTrackData
+import ua.com.radiokot.osmanddisplay.features.track.data.model.CoordinatesBuffer
 import ua.com.radiokot.osmanddisplay.features.track.data.model.ImportedTrackRecord
 import ua.com.radiokot.osmanddisplay.features.track.data.model.SupportedFileExtensions
 import ua.com.radiokot.osmanddisplay.features.track.logic.ImportTrackUseCase
@@ -119,7 +117,8 @@ class ImportTrackActivity : BaseActivity() {
     }
 
     private fun tryToReadFile(): ReadTrack? = try {
-        // Damn, I can't remember the rationale for this limit 🤦🏻.
+        // Files are read streaming, the limit is for the track itself
+        // to fit in memory once read.
         check(file.size <= MAX_FILE_SIZE_BYTES) {
             "The file is too big: ${file.size} bytes"
         }
@@ -128,13 +127,27 @@ class ImportTrackActivity : BaseActivity() {
             in SupportedFileExtensions.GEOJSON -> {
                 contentResolver.openInputStream(file.uri)!!
                     .use { readGeoJsonFileUseCase(it).blockingGet() }
-                    .let(ReadTrack::GeoJson)
+                    .let { geoJsonTrackData ->
+                        ReadTrack(
+                            name = geoJsonTrackData.name,
+                            trackCoordinates = geoJsonTrackData.track,
+                            poiCoordinates = geoJsonTrackData.poi,
+                            link = null,
+                        )
+                    }
             }
 
             in SupportedFileExtensions.GPX -> {
                 contentResolver.openInputStream(file.uri)!!
                     .use { readGpxFileUseCase(it).blockingGet() }
-                    .let(ReadTrack::Gpx)
+                    .let { gpxTrackData ->
+                        ReadTrack(
+                            name = gpxTrackData.name,
+                            trackCoordinates = gpxTrackData.track,
+                            poiCoordinates = gpxTrackData.poi,
+                            link = gpxTrackData.link,
+                        )
+                    }
             }
 
             else ->
@@ -208,15 +221,13 @@ class ImportTrackActivity : BaseActivity() {
             return
         }
 
-        val gpxLink = (readTrack as? ReadTrack.Gpx)?.gpxTrackData?.link
-
         importTrackUseCaseFactory
             .get(
                 name = trackName!!,
                 geometry = readTrack.geometry,
                 poi = readTrack.poi,
                 thumbnail = trackThumbnail!!,
-                onlinePreviewUrl = gpxLink ?: requestedOnlinePreviewUrl,
+                onlinePreviewUrl = readTrack.link ?: requestedOnlinePreviewUrl,
             )
             .invoke()
             .subscribeOn(Schedulers.io())
@@ -274,36 +285,20 @@ class ImportTrackActivity : BaseActivity() {
                 ?.getParcelableExtra(RESULT_EXTRA)
     }
 
-    private sealed interface ReadTrack {
-        val name: String?
-        val geometry: LineString
-        val poi: MultiPoint
-
-        @JvmInline
-        value class GeoJson(val geoJsonTrackData: GeoJsonTrackData) : ReadTrack {
-            override val name: String?
-                get() = geoJsonTrackData.name
-
-            override val geometry: LineString
-                get() = geoJsonTrackData.track
-
-            override val poi: MultiPoint
-                get() = geoJsonTrackData.poi
-        }
-
-        @JvmInline
-        value class Gpx(val gpxTrackData: GpxTrackData) : ReadTrack {
-            override val name: String?
-                get() = gpxTrackData.name
-
-            override val geometry: LineString
-                get() = gpxTrackData.track
-                    .map { Point.fromLngLat(it.lon, it.lat) }
-                    .let(LineString::fromLngLats)
-
-            override val poi: MultiPoint
-                get() = MultiPoint.fromLngLats(emptyList())
-        }
+    /**
+     * Track read from the file. Its coordinates are converted to the geometry once,
+     * as it is needed for both the thumbnail and the import, and are not kept afterwards.
+     *
+     * @param link link to the track from the file, if any
+     */
+    private class ReadTrack(
+        val name: String?,
+        trackCoordinates: CoordinatesBuffer,
+        poiCoordinates: CoordinatesBuffer,
+        val link: String?,
+    ) {
+        val geometry: LineString = LineString.fromLngLats(trackCoordinates.toPoints())
+        val poi: MultiPoint = MultiPoint.fromLngLats(poiCoordinates.toPoints())
     }
 
     companion object {
@@ -311,7 +306,7 @@ class ImportTrackActivity : BaseActivity() {
         private const val ONLINE_PREVIEW_URL_EXTRA = "online_preview_url"
         private const val RESULT_EXTRA = "result"
 
-        private const val MAX_FILE_SIZE_BYTES = 1 * 1024 * 1024
+        private const val MAX_FILE_SIZE_BYTES = 32 * 1024 * 1024
 
         // Import is only allowed from a file, as passing the GeoJSON content string
         // in an Intent can easily overcome the activity transaction size limit.
@@ -0,0 +1,128 @@
+package ua.com.radiokot.osmanddisplay
+
+import io.reactivex.Completable
+import io.reactivex.Observable
+import io.reactivex.Single
+import io.reactivex.subjects.PublishSubject
+import io.reactivex.subjects.Subject
+import org.junit.Assert
+import org.junit.Test
+import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.DisplayCommandSender
+import ua.com.radiokot.osmanddisplay.features.broadcasting.logic.DisplayPacingController
+import ua.com.radiokot.osmanddisplay.features.broadcasting.model.DisplayCommand
+import java.util.concurrent.TimeUnit
+
+class DisplayPacingTest {
+    /**
+     * Sender which display notifies its readiness [readyDelayMs] after each command,
+     * or never if it is null.
+     */
+    private class FakeCommandSender(
+        var readyDelayMs: Long?,
+    ) : DisplayCommandSender {
+        private val readySubject: Subject<Unit> = PublishSubject.create()
+
+        override val isBusy: Observable<Boolean> = Observable.just(false)
+
+        override val readyEvents: Observable<Unit> = readySubject
+
+        override fun getMaxCommandSize(): Single<Int> = Single.just(64)
+
+        override fun send(
+            command: DisplayCommand,
+            priority: DisplayCommandSender.Priority,
+        ): Completable = Completable.fromAction {
+            readyDelayMs?.also { delayMs ->
+                Completable
+                    .timer(delayMs, TimeUnit.MILLISECONDS)
+                    .subscribe { readySubject.onNext(Unit) }
+            }
+        }
+    }
+
+    private val operation = DisplayPacingController.Operation.FRAME_PREPARE
+
+    @Test
+    fun learnReadyTime() {
+        val pacingController = DisplayPacingController(
+            commandSender = FakeCommandSender(readyDelayMs = 200),
+            hasReadyNotifications = true,
+        )
+
+        repeat(3) {
+            pacingController.send(DisplayCommand.FramePrepare, operation).blockingAwait()
+        }
+
+        val timing = pacingController.timings.getValue(operation)
+        Assert.assertEquals(3, timing.readyCount)
+        Assert.assertEquals(0, timing.missCount)
+        Assert.assertTrue(timing.estimatedMs in 200L..400L)
+        Assert.assertEquals((timing.estimatedMs * 1.5).toLong() + 100, timing.maxWaitMs)
+        Assert.assertTrue(timing.maxWaitMs < operation.defaultDelayMs)
+    }
+
+    @Test
+    fun waitLongerAfterMissedReady() {
+        val commandSender = FakeCommandSender(readyDelayMs = 200)
+        val pacingController = DisplayPacingController(
+            commandSender = commandSender,
+            hasReadyNotifications = true,
+        )
+        pacingController.send(DisplayCommand.FramePrepare, operation).blockingAwait()
+        val learnedTiming = pacingController.timings.getValue(operation)
+
+        commandSender.readyDelayMs = null
+        val startedAt = System.nanoTime()
+        pacingController.send(DisplayCommand.FramePrepare, operation).blockingAwait()
+        val waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt)
+
+        val timing = pacingController.timings.getValue(operation)
+        // The wait is ended by the learned max wait, not the default delay.
+        Assert.assertTrue(waitedMs >= learnedTiming.maxWaitMs)
+        Assert.assertTrue(waitedMs < operation.defaultDelayMs)
+        Assert.assertEquals(1, timing.missCount)
+        Assert.assertTrue(timing.estimatedMs > learnedTiming.estimatedMs)
+        Assert.assertTrue(timing.maxWaitMs > learnedTiming.maxWaitMs)
+        Assert.assertTrue(timing.maxWaitMs <= operation.defaultDelayMs)
+    }
+
+    @Test
+    fun defaultDelayWithoutReadyNotifications() {
+        val pacingController = DisplayPacingController(
+            // Notifications which can't be trusted are ignored.
+            commandSender = FakeCommandSender(readyDelayMs = 50),
+            hasReadyNotifications = false,
+        )
+
+        val startedAt = System.nanoTime()
+        pacingController.send(DisplayCommand.FramePrepare, operation).blockingAwait()
+        val waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt)
+
+        Assert.assertTrue(waitedMs >= operation.defaultDelayMs)
+        Assert.assertEquals(
+            DisplayPacingController.Timing(operation),
+            pacingController.timings.getValue(operation)
+        )
+    }
+
+    @Test
+    fun operationsOneAtATime() {
+        val pacingController = DisplayPacingController(
+            commandSender = FakeCommandSender(readyDelayMs = 200),
+            hasReadyNotifications = true,
+        )
+
+        val startedAt = System.nanoTime()
+        Completable
+            .merge(
+                (1..3).map {
+                    pacingController.send(DisplayCommand.FramePrepare, operation)
+                }
+            )
+            .blockingAwait()
+        val waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt)
+
+        Assert.assertTrue(waitedMs >= 3 * 200)
+        Assert.assertEquals(3, pacingController.timings.getValue(operation).readyCount)
+    }
+}
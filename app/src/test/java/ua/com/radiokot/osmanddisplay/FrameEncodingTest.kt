@@ -0,0 +1,196 @@
+package ua.com.radiokot.osmanddisplay
+
+import org.junit.Assert
+import org.junit.Test
+import ua.com.radiokot.osmanddisplay.features.map.logic.DuplicateFrameFilter
+import ua.com.radiokot.osmanddisplay.features.map.logic.FrameDeltaTracker
+import ua.com.radiokot.osmanddisplay.features.map.logic.MonochromeFrameEncoder
+import ua.com.radiokot.osmanddisplay.features.map.logic.PackBitsCompressor
+import java.io.ByteArrayOutputStream
+import kotlin.random.Random
+
+class FrameEncodingTest {
+    private val white = 0xFFFFFFFF.toInt()
+    private val black = 0xFF000000.toInt()
+
+    @Test
+    fun encodeRowMajor() {
+        val width = 10
+        val height = 2
+        val pixels = IntArray(width * height) { black }
+        // First row: 1st and 10th pixels are white.
+        pixels[0] = white
+        pixels[9] = white
+        // Second row: 8th pixel is white.
+        pixels[width + 7] = white
+
+        val output = ByteArray(MonochromeFrameEncoder.getEncodedSize(width, height))
+        MonochromeFrameEncoder.encode(pixels, width, height, output)
+
+        Assert.assertArrayEquals(
+            byteArrayOf(
+                0x80.toByte(), 0x40.toByte(),
+                0x01.toByte(), 0x00.toByte(),
+            ),
+            output
+        )
+    }
+
+    @Test
+    fun encodeThreshold() {
+        val pixels = intArrayOf(
+            0xFF7F7F7F.toInt(), 0xFF808080.toInt(), black, white,
+            black, black, black, black,
+        )
+        val output = ByteArray(1)
+        MonochromeFrameEncoder.encode(pixels, 8, 1, output)
+
+        Assert.assertEquals(0x50.toByte(), output[0])
+    }
+
+    @Test
+    fun encodeScaledAveraging() {
+        // 4x2 frame scaled to 2x1: each output pixel covers 2x2 pixels.
+        val gray = 0xFF707070.toInt()
+        val pixels = intArrayOf(
+            black, white, white, gray,
+            white, white, gray, black,
+        )
+        val output = ByteArray(1)
+        MonochromeFrameEncoder.encodeScaled(pixels, 4, 2, 2, 1, output)
+
+        // 3 of 4 white is white, the average of the second one is below 50%.
+        Assert.assertEquals(0x80.toByte(), output[0])
+    }
+
+    @Test
+    fun encodeScaledKeepsThinLines() {
+        // A 1 pixel wide black line on every 2nd column
+        // is dropped by the nearest neighbour when scaled to a half.
+        val width = 16
+        val height = 2
+        val pixels = IntArray(width * height) { i ->
+            if (i % width % 2 == 1) black else white
+        }
+        val output = ByteArray(MonochromeFrameEncoder.getEncodedSize(8, 1))
+        MonochromeFrameEncoder.encodeScaled(pixels, width, height, 8, 1, output)
+
+        Assert.assertEquals(0x00.toByte(), output[0])
+    }
+
+    @Test
+    fun encodeScaledSameSize() {
+        val random = Random(14)
+        val width = 13
+        val height = 5
+        val pixels = IntArray(width * height) { if (random.nextBoolean()) white else black }
+
+        val expected = ByteArray(MonochromeFrameEncoder.getEncodedSize(width, height))
+        MonochromeFrameEncoder.encode(pixels, width, height, expected)
+        val output = ByteArray(expected.size)
+        MonochromeFrameEncoder.encodeScaled(pixels, width, height, width, height, output)
+
+        Assert.assertArrayEquals(expected, output)
+    }
+
+    @Test
+    fun findChangedBands() {
+        val bytesWidth = 2
+        val tracker = FrameDeltaTracker(
+            maxChangedRatio = 0.5,
+            bandMergeGapRows = 1,
+        )
+        val shown = ByteArray(bytesWidth * 10)
+
+        Assert.assertNull(tracker.getChangedBands(shown, bytesWidth))
+
+        tracker.onFrameShown(shown)
+        Assert.assertEquals(emptyList<IntRange>(), tracker.getChangedBands(shown, bytesWidth))
+
+        val new = shown.copyOf()
+        // Rows 1 and 3 are merged over the 1 row gap, row 8 is a separate band.
+        new[2] = 1
+        new[7] = 1
+        new[17] = 1
+        Assert.assertEquals(
+            listOf(2..7, 16..17),
+            tracker.getChangedBands(new, bytesWidth)
+        )
+
+        // Too many changes.
+        new.fill(1)
+        Assert.assertNull(tracker.getChangedBands(new, bytesWidth))
+
+        tracker.reset()
+        Assert.assertNull(tracker.getChangedBands(shown, bytesWidth))
+    }
+
+    @Test
+    fun packBitsRoundTrip() {
+        val random = Random(42)
+        val data = ByteArray(5000)
+        var i = 0
+        while (i < data.size) {
+            val runLength = random.nextInt(1, 300)
+            val value =
+                if (random.nextInt(4) == 0)
+                    random.nextInt().toByte()
+                else
+                    0xFF.toByte()
+            repeat(minOf(runLength, data.size - i)) {
+                data[i++] = if (random.nextInt(20) == 0) random.nextInt().toByte() else value
+            }
+        }
+
+        val chunks = PackBitsCompressor.compress(data, 16)
+
+        Assert.assertTrue(chunks.all { it.size <= 16 })
+        Assert.assertTrue(chunks.sumOf(ByteArray::size) < data.size)
+        val unpacked = ByteArrayOutputStream()
+        // Each chunk must be unpackable on its own.
+        chunks.forEach { unpacked.write(unpackBits(it)) }
+        Assert.assertArrayEquals(data, unpacked.toByteArray())
+    }
+
+    @Test
+    fun skipDuplicateFrames() {
+        val width = 20
+        val bytesWidth = 3
+        val filter = DuplicateFrameFilter(
+            ignoredCornerWidthPx = 8,
+            ignoredCornerHeightPx = 2,
+        )
+        val shown = ByteArray(bytesWidth * 4) { it.toByte() }
+
+        Assert.assertFalse(filter.isDuplicate(shown, width))
+        filter.onFrameShown(shown, width)
+        Assert.assertTrue(filter.isDuplicate(shown.copyOf(), width))
+
+        // Change in the ignored corner (the last byte of the last 2 rows).
+        val timeChanged = shown.copyOf().apply { this[size - 1] = 0x7F }
+        Assert.assertTrue(filter.isDuplicate(timeChanged, width))
+
+        // Change outside the corner.
+        val mapChanged = shown.copyOf().apply { this[bytesWidth] = 0x7F }
+        Assert.assertFalse(filter.isDuplicate(mapChanged, width))
+
+        filter.reset()
+        Assert.assertFalse(filter.isDuplicate(shown, width))
+    }
+
+    private fun unpackBits(chunk: ByteArray): ByteArray {
+        val output = ByteArrayOutputStream()
+        var i = 0
+        while (i < chunk.size) {
+            val header = chunk[i++].toInt()
+            if (header >= 0) {
+                output.write(chunk, i, header + 1)
+                i += header + 1
+            } else if (header != -128) {
+                val value = chunk[i++].toInt()
+                repeat(1 - header) { output.write(value) }
+            }
+        }
+        return output.toByteArray()
+    }
+}
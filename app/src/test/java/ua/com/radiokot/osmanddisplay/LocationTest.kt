@@ -0,0 +1,103 @@
+package ua.com.radiokot.osmanddisplay
+
+import org.junit.Assert
+import org.junit.Test
+import ua.com.radiokot.osmanddisplay.features.map.logic.LocationPredictor
+import ua.com.radiokot.osmanddisplay.features.map.logic.LocationSamplingScheduler
+import ua.com.radiokot.osmanddisplay.features.map.logic.LocationSamplingScheduler.Mode
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.sin
+
+class LocationTest {
+    @Test
+    fun samplingSpeedsUpImmediately() {
+        val scheduler = LocationSamplingScheduler()
+        Assert.assertEquals(Mode.SLOW, scheduler.mode)
+
+        Assert.assertEquals(Mode.FAST, scheduler.onLocation(speedMs = 6.0, isTurnAhead = false))
+        Assert.assertEquals(Mode.NEAR_TURN, scheduler.onLocation(speedMs = 6.0, isTurnAhead = true))
+        Assert.assertNull(scheduler.onLocation(speedMs = 6.0, isTurnAhead = true))
+        Assert.assertEquals(Mode.NEAR_TURN, scheduler.mode)
+    }
+
+    @Test
+    fun samplingBacksOffAfterLocationsInARow() {
+        val scheduler = LocationSamplingScheduler(backOffLocationCount = 3)
+        scheduler.onLocation(speedMs = 6.0, isTurnAhead = true)
+
+        // The turn is passed.
+        Assert.assertNull(scheduler.onLocation(speedMs = 6.0, isTurnAhead = false))
+        Assert.assertNull(scheduler.onLocation(speedMs = 6.0, isTurnAhead = false))
+        Assert.assertEquals(Mode.FAST, scheduler.onLocation(speedMs = 6.0, isTurnAhead = false))
+
+        // A fast location in between restarts the back off.
+        Assert.assertNull(scheduler.onLocation(speedMs = 2.0, isTurnAhead = false))
+        Assert.assertNull(scheduler.onLocation(speedMs = 2.0, isTurnAhead = false))
+        Assert.assertNull(scheduler.onLocation(speedMs = 6.0, isTurnAhead = false))
+        Assert.assertNull(scheduler.onLocation(speedMs = 2.0, isTurnAhead = false))
+        Assert.assertNull(scheduler.onLocation(speedMs = 2.0, isTurnAhead = false))
+        Assert.assertEquals(Mode.FAST, scheduler.mode)
+        Assert.assertEquals(Mode.SLOW, scheduler.onLocation(speedMs = 2.0, isTurnAhead = false))
+
+        // Turns don't matter when not moving.
+        Assert.assertNull(scheduler.onLocation(speedMs = 0.1, isTurnAhead = true))
+        Assert.assertNull(scheduler.onLocation(speedMs = 0.1, isTurnAhead = true))
+        Assert.assertEquals(Mode.STATIONARY, scheduler.onLocation(speedMs = 0.1, isTurnAhead = true))
+
+        Assert.assertEquals(Mode.SLOW, scheduler.onLocation(speedMs = 1.0, isTurnAhead = false))
+    }
+
+    @Test
+    fun samplingTurnLookAheadDistance() {
+        val scheduler = LocationSamplingScheduler()
+
+        Assert.assertEquals(50.0, scheduler.getTurnLookAheadDistanceM(1.0), 0.000001)
+        Assert.assertEquals(120.0, scheduler.getTurnLookAheadDistanceM(6.0), 0.000001)
+    }
+
+    @Test
+    fun predictorConvergesOnConstantVelocity() {
+        val predictor = LocationPredictor()
+        val speedMs = 5.0
+        val bearingDeg = 45.0
+        val startLat = 48.45
+        val startLng = 35.05
+        val metersPerLatDegree = 111320.0
+        val metersPerLngDegree = metersPerLatDegree * cos(Math.toRadians(startLat))
+        fun getLat(timeS: Int) =
+            startLat + speedMs * cos(Math.toRadians(bearingDeg)) * timeS / metersPerLatDegree
+
+        fun getLng(timeS: Int) =
+            startLng + speedMs * sin(Math.toRadians(bearingDeg)) * timeS / metersPerLngDegree
+
+        Assert.assertNull(predictor.predict(1000))
+
+        // Fixes with no speed, so it is only estimated from the positions.
+        var initialSpeedErrorMs = 0.0
+        for (timeS in 0 until 20) {
+            predictor.onFix(
+                lat = getLat(timeS),
+                lng = getLng(timeS),
+                fixTimeMs = timeS * 1000L,
+                accuracyM = 5.0,
+                speedMs = null,
+                speedAccuracyMs = null,
+                bearingDeg = bearingDeg,
+            )
+            if (timeS == 2) {
+                initialSpeedErrorMs = abs(predictor.speedMs - speedMs)
+            }
+        }
+
+        Assert.assertTrue(abs(predictor.speedMs - speedMs) < initialSpeedErrorMs)
+        Assert.assertEquals(speedMs, predictor.speedMs, 0.1)
+        Assert.assertEquals(0.0, predictor.turnRateDegS, 0.1)
+
+        // 2 seconds after the last fix, within about a meter.
+        val predictedLocation = predictor.predict(2000)!!
+        Assert.assertEquals(getLat(21), predictedLocation.lat, 0.00001)
+        Assert.assertEquals(getLng(21), predictedLocation.lng, 0.00001)
+        Assert.assertEquals(bearingDeg, predictedLocation.bearing!!, 1.0)
+    }
+}
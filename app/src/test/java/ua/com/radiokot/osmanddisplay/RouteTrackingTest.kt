@@ -0,0 +1,185 @@
+package ua.com.radiokot.osmanddisplay
+
+import com.mapbox.geojson.Point
+import org.junit.Assert
+import org.junit.Test
+import ua.com.radiokot.osmanddisplay.features.map.logic.RouteProgressTracker
+import ua.com.radiokot.osmanddisplay.features.map.logic.TrackMatcher
+import ua.com.radiokot.osmanddisplay.features.map.model.LocationData
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackDistanceIndex
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackSpatialIndex
+import kotlin.math.abs
+import kotlin.math.cos
+
+class RouteTrackingTest {
+    private val startLat = 48.45
+    private val startLng = 35.05
+    private val metersPerLatDegree = 111320.0
+    private val metersPerLngDegree = metersPerLatDegree * cos(Math.toRadians(startLat))
+
+    /**
+     * Out-and-back track: [LEG_POINT_COUNT] points to the north every [POINT_SPACING_M],
+     * then back to the south along a parallel line [RETURN_LEG_OFFSET_M] to the east.
+     */
+    private val geometry = TrackGeometry(
+        (0 until LEG_POINT_COUNT).map { i -> Point.fromLngLat(getLng(0.0), getLat(i.toDouble())) } +
+                (LEG_POINT_COUNT - 1 downTo 0).map { i ->
+                    Point.fromLngLat(getLng(RETURN_LEG_OFFSET_M), getLat(i.toDouble()))
+                }
+    )
+    private val spatialIndex = TrackSpatialIndex.build(geometry)
+
+    /**
+     * @return latitude of the [pointIndex] outbound track point, which may be fractional
+     */
+    private fun getLat(pointIndex: Double) =
+        startLat + pointIndex * POINT_SPACING_M / metersPerLatDegree
+
+    /**
+     * @return longitude of the outbound track line shifted by [offsetEastM]
+     */
+    private fun getLng(offsetEastM: Double) =
+        startLng + offsetEastM / metersPerLngDegree
+
+    @Test
+    fun matcherStaysOnCurrentSegment() {
+        val matcher = TrackMatcher(geometry, spatialIndex)
+        Assert.assertNotNull(matcher.match(LocationData(lng = getLng(0.0), lat = getLat(10.5), bearing = 0.0)))
+        Assert.assertEquals(10, matcher.matchedProjection?.segmentIndex)
+
+        // Closer to the return leg, but it is far along the track.
+        val location = LocationData(lng = getLng(6.0), lat = getLat(12.5), bearing = 0.0)
+        val matchedLocation = matcher.match(location)
+
+        Assert.assertEquals(12, matcher.matchedProjection?.segmentIndex)
+        Assert.assertEquals(6.0, matcher.matchedProjection!!.distanceM, 0.1)
+        Assert.assertNotNull(matchedLocation)
+        Assert.assertEquals(getLng(0.0), matchedLocation!!.lng, 0.000001)
+        Assert.assertEquals(getLat(12.5), matchedLocation.lat, 0.000001)
+        Assert.assertEquals(0.0, matchedLocation.bearing!!, 1.0)
+
+        // With nothing matched before, the closest segment is taken.
+        val newMatcher = TrackMatcher(geometry, spatialIndex)
+        val newMatchedLocation = newMatcher.match(location)
+
+        // Return leg segment from the 13th point to the 12th one.
+        Assert.assertEquals(2 * LEG_POINT_COUNT - 14, newMatcher.matchedProjection?.segmentIndex)
+        Assert.assertEquals(4.0, newMatcher.matchedProjection!!.distanceM, 0.1)
+        Assert.assertEquals(getLng(RETURN_LEG_OFFSET_M), newMatchedLocation!!.lng, 0.000001)
+        // The bearing follows the location, not the return leg direction.
+        Assert.assertEquals(0.0, newMatchedLocation.bearing!!, 1.0)
+    }
+
+    @Test
+    fun matcherReacquiresAfterGap() {
+        val matcher = TrackMatcher(geometry, spatialIndex)
+        matcher.match(LocationData(lng = getLng(0.0), lat = getLat(5.5), bearing = 0.0))
+        Assert.assertEquals(5, matcher.matchedProjection?.segmentIndex)
+
+        // No fixes for a while, the next one is far beyond the search window.
+        Assert.assertNotNull(matcher.match(LocationData(lng = getLng(-3.0), lat = getLat(40.5), bearing = 0.0)))
+        Assert.assertEquals(40, matcher.matchedProjection?.segmentIndex)
+
+        // Going perpendicular to the track is not following it.
+        Assert.assertNull(matcher.match(LocationData(lng = getLng(-3.0), lat = getLat(41.0), bearing = 270.0)))
+        Assert.assertNull(matcher.matchedProjection)
+
+        // Too far from the track.
+        Assert.assertNull(matcher.match(LocationData(lng = getLng(-40.0), lat = getLat(42.5), bearing = 0.0)))
+        Assert.assertNull(matcher.matchedProjection)
+
+        Assert.assertNotNull(matcher.match(LocationData(lng = getLng(-3.0), lat = getLat(44.5), bearing = 180.0)))
+        Assert.assertEquals(44, matcher.matchedProjection?.segmentIndex)
+    }
+
+    @Test
+    fun routeProgressHysteresis() {
+        val tracker = RouteProgressTracker(
+            trackMatcher = TrackMatcher(geometry, spatialIndex),
+            distanceIndex = TrackDistanceIndex.build(geometry, spatialIndex, emptyList()),
+        )
+        val events = tracker.events.test()
+        var pointIndex = 0.5
+        fun onLocation(offsetEastM: Double) {
+            pointIndex++
+            val location = LocationData(lng = getLng(offsetEastM), lat = getLat(pointIndex), bearing = 0.0)
+            val result = tracker.onLocation(location)
+
+            // Only the locations on route are snapped, if matched at all.
+            Assert.assertEquals(
+                if (tracker.isOnRoute && abs(offsetEastM) <= MAX_MATCH_DISTANCE_M)
+                    getLng(0.0)
+                else
+                    location.lng,
+                result.lng,
+                0.000001
+            )
+        }
+
+        // Unknown until the locations tell, which is not a change.
+        Assert.assertEquals(RouteProgressTracker.State.UNKNOWN, tracker.state)
+        onLocation(-5.0)
+        Assert.assertEquals(RouteProgressTracker.State.UNKNOWN, tracker.state)
+        Assert.assertNull(tracker.progress)
+        onLocation(-5.0)
+        Assert.assertTrue(tracker.isOnRoute)
+        Assert.assertNotNull(tracker.progress)
+
+        // A miss in between restarts the counting.
+        onLocation(-40.0)
+        onLocation(-40.0)
+        onLocation(-20.0)
+        onLocation(-40.0)
+        onLocation(-40.0)
+        Assert.assertTrue(tracker.isOnRoute)
+        // The progress is kept while the rider is not off route yet.
+        Assert.assertNotNull(tracker.progress)
+        onLocation(-40.0)
+        Assert.assertFalse(tracker.isOnRoute)
+        Assert.assertNull(tracker.progress)
+
+        // Matched, but not close enough to get back on route.
+        onLocation(-20.0)
+        onLocation(-20.0)
+        onLocation(-20.0)
+        Assert.assertFalse(tracker.isOnRoute)
+        onLocation(-10.0)
+        onLocation(-20.0)
+        onLocation(-10.0)
+        Assert.assertFalse(tracker.isOnRoute)
+        onLocation(-5.0)
+        Assert.assertTrue(tracker.isOnRoute)
+
+        events.assertValues(
+            RouteProgressTracker.Event.OFF_ROUTE,
+            RouteProgressTracker.Event.BACK_ON_ROUTE,
+        )
+    }
+
+    @Test
+    fun routeProgressStartingOffRoute() {
+        val tracker = RouteProgressTracker(
+            trackMatcher = TrackMatcher(geometry, spatialIndex),
+            distanceIndex = TrackDistanceIndex.build(geometry, spatialIndex, emptyList()),
+        )
+        val events = tracker.events.test()
+
+        repeat(3) { i ->
+            Assert.assertEquals(RouteProgressTracker.State.UNKNOWN, tracker.state)
+            tracker.onLocation(LocationData(lng = getLng(-40.0), lat = getLat(i + 1.5), bearing = 0.0))
+        }
+
+        Assert.assertEquals(RouteProgressTracker.State.OFF_ROUTE, tracker.state)
+        Assert.assertNull(tracker.progress)
+        events.assertNoValues()
+    }
+
+    private companion object {
+        private const val LEG_POINT_COUNT = 50
+        private const val POINT_SPACING_M = 20.0
+        private const val RETURN_LEG_OFFSET_M = 10.0
+        // The default of the TrackMatcher.
+        private const val MAX_MATCH_DISTANCE_M = 25.0
+    }
+}
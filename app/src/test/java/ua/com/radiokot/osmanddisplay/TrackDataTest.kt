@@ -1,13 +1,17 @@
 package ua.com.radiokot.osmanddisplay
 
 import com.ctc.wstx.stax.WstxInputFactory
-import com.ctc.wstx.stax.WstxOutputFactory
-import com.fasterxml.jackson.dataformat.xml.XmlFactory
-import com.fasterxml.jackson.dataformat.xml.XmlMapper
+import com.mapbox.geojson.LineString
+import com.mapbox.geojson.Point
 import org.junit.Assert
 import org.junit.Test
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackDistanceIndex
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackGeometry
+import ua.com.radiokot.osmanddisplay.features.track.data.model.TrackSpatialIndex
 import ua.com.radiokot.osmanddisplay.features.track.logic.ReadGeoJsonFileUseCase
 import ua.com.radiokot.osmanddisplay.features.track.logic.ReadGpxFileUseCase
+import ua.com.radiokot.osmanddisplay.features.track.logic.TrackSimplifier
+import java.io.File
 
 class TrackDataTest {
     @Test
@@ -17,25 +21,25 @@ class TrackDataTest {
         ).blockingGet()
 
         Assert.assertEquals("На тот берег", geoJsonTrackData.name)
-        Assert.assertEquals(0, geoJsonTrackData.poi.coordinates().size)
+        Assert.assertEquals(0, geoJsonTrackData.poi.size)
         Assert.assertEquals(
             35.072030000000005,
-            geoJsonTrackData.track.coordinates().first().longitude(),
+            geoJsonTrackData.track.getLng(0),
             0.000001
         )
         Assert.assertEquals(
             48.45664000000001,
-            geoJsonTrackData.track.coordinates().first().latitude(),
+            geoJsonTrackData.track.getLat(0),
             0.000001
         )
         Assert.assertEquals(
             35.07115,
-            geoJsonTrackData.track.coordinates().last().longitude(),
+            geoJsonTrackData.track.getLng(geoJsonTrackData.track.size - 1),
             0.000001
         )
         Assert.assertEquals(
             48.4566,
-            geoJsonTrackData.track.coordinates().last().latitude(),
+            geoJsonTrackData.track.getLat(geoJsonTrackData.track.size - 1),
             0.000001
         )
     }
@@ -47,7 +51,7 @@ class TrackDataTest {
         ).blockingGet()
 
         Assert.assertEquals("Днепр (16,2km)", geoJsonTrackData.name)
-        Assert.assertEquals(0, geoJsonTrackData.poi.coordinates().size)
+        Assert.assertEquals(0, geoJsonTrackData.poi.size)
     }
 
     @Test
@@ -57,9 +61,9 @@ class TrackDataTest {
         ).blockingGet()
 
         val poi = geoJsonTrackData.poi
-        Assert.assertEquals(3, poi.coordinates().size)
-        Assert.assertEquals(35.01828452247929, poi.coordinates().last().longitude(), 0.000001)
-        Assert.assertEquals(48.434744933730215, poi.coordinates().last().latitude(), 0.000001)
+        Assert.assertEquals(3, poi.size)
+        Assert.assertEquals(35.01828452247929, poi.getLng(poi.size - 1), 0.000001)
+        Assert.assertEquals(48.434744933730215, poi.getLat(poi.size - 1), 0.000001)
     }
 
     @Test
@@ -68,7 +72,7 @@ class TrackDataTest {
             TestAssets.getInputStream("BRouterTrackWithTrailingComma.geojson")
         ).blockingGet()
 
-        Assert.assertEquals(2, geoJsonTrackData.poi.coordinates().size)
+        Assert.assertEquals(2, geoJsonTrackData.poi.size)
     }
 
     @Test(expected = IllegalStateException::class)
@@ -85,18 +89,13 @@ class TrackDataTest {
         ).blockingGet()
 
         Assert.assertNull(geoJsonTrackData.name)
-        Assert.assertEquals(0, geoJsonTrackData.poi.coordinates().size)
+        Assert.assertEquals(0, geoJsonTrackData.poi.size)
     }
 
     @Test
     fun readStravaGpx() {
         val gpxTrackData = ReadGpxFileUseCase(
-            xmlMapper = XmlMapper.builder(
-                XmlFactory.builder()
-                    .xmlInputFactory(WstxInputFactory())
-                    .xmlOutputFactory(WstxOutputFactory())
-                    .build()
-            ).build()
+            xmlInputFactory = WstxInputFactory()
         )
             .invoke(TestAssets.getInputStream("StravaTrack.gpx"))
             .blockingGet()
@@ -105,23 +104,212 @@ class TrackDataTest {
         Assert.assertEquals("https://www.strava.com/routes/3044739247970226322", gpxTrackData.link)
         Assert.assertEquals(
             35.072030000000005,
-            gpxTrackData.track.first().lon,
+            gpxTrackData.track.getLng(0),
             0.000001
         )
         Assert.assertEquals(
             48.45664000000001,
-            gpxTrackData.track.first().lat,
+            gpxTrackData.track.getLat(0),
             0.000001
         )
         Assert.assertEquals(
             35.07115,
-            gpxTrackData.track.last().lon,
+            gpxTrackData.track.getLng(gpxTrackData.track.size - 1),
             0.000001
         )
         Assert.assertEquals(
             48.4566,
-            gpxTrackData.track.last().lat,
+            gpxTrackData.track.getLat(gpxTrackData.track.size - 1),
             0.000001
         )
     }
+
+    @Test
+    fun readGpxRouteWithWaypoints() {
+        val gpxTrackData = ReadGpxFileUseCase(
+            xmlInputFactory = WstxInputFactory()
+        )
+            .invoke(TestAssets.getInputStream("RouteWithWaypoints.gpx"))
+            .blockingGet()
+
+        Assert.assertEquals("Along the river", gpxTrackData.name)
+        Assert.assertNull(gpxTrackData.link)
+        Assert.assertEquals(3, gpxTrackData.track.size)
+        Assert.assertEquals(35.0720, gpxTrackData.track.getLng(1), 0.000001)
+        Assert.assertEquals(48.4580, gpxTrackData.track.getLat(1), 0.000001)
+        Assert.assertEquals(2, gpxTrackData.poi.size)
+        Assert.assertEquals(35.0750, gpxTrackData.poi.getLng(1), 0.000001)
+        Assert.assertEquals(48.4600, gpxTrackData.poi.getLat(1), 0.000001)
+    }
+
+    @Test
+    fun spatialIndexNearestSegment() {
+        val geometry = TrackGeometry(
+            ReadGeoJsonFileUseCase()
+                .invoke(TestAssets.getInputStream("StravaTrack.geojson"))
+                .blockingGet()
+                .track
+                .toPoints()
+        )
+        val spatialIndex = TrackSpatialIndex.build(geometry, cellSizeM = 50.0)
+
+        // Points around every 7th track point, compared to the full scan.
+        for (i in 0 until geometry.pointCount step 7) {
+            val lat = geometry.lats[i] + 0.0003
+            val lng = geometry.lngs[i] - 0.0002
+
+            val expectedDistanceM = (0 until geometry.segmentCount)
+                .minOf { geometry.getProjection(lat, lng, it).distanceM }
+            val nearestSegment = spatialIndex.getNearestSegment(geometry, lat, lng, 500.0)
+
+            Assert.assertNotNull(nearestSegment)
+            Assert.assertEquals(expectedDistanceM, nearestSegment!!.distanceM, 0.000001)
+        }
+
+        Assert.assertNull(
+            spatialIndex.getDistanceToTrackM(
+                geometry,
+                geometry.lats[0] + 0.5,
+                geometry.lngs[0],
+                500.0,
+            )
+        )
+    }
+
+    @Test
+    fun spatialIndexLongDiagonalSegment() {
+        val geometry = TrackGeometry(
+            listOf(
+                Point.fromLngLat(35.00, 48.40),
+                Point.fromLngLat(35.08, 48.45),
+            )
+        )
+        val spatialIndex = TrackSpatialIndex.build(geometry, cellSizeM = 100.0)
+
+        val lat = 48.40 + 0.05 * 0.3 + 0.0002
+        val lng = 35.00 + 0.08 * 0.3
+        Assert.assertEquals(
+            geometry.getProjection(lat, lng, 0).distanceM,
+            spatialIndex.getDistanceToTrackM(geometry, lat, lng, 50.0)!!,
+            0.000001
+        )
+
+        // The corner of the segment bounding box is far from it.
+        Assert.assertEquals(
+            0,
+            spatialIndex.getSegmentsInBox(
+                minLat = 48.449,
+                minLng = 35.000,
+                maxLat = 48.450,
+                maxLng = 35.001,
+            ).size
+        )
+    }
+
+    @Test
+    fun spatialIndexPersistence() {
+        val geometry = TrackGeometry(
+            ReadGeoJsonFileUseCase()
+                .invoke(TestAssets.getInputStream("BRouterTrack.geojson"))
+                .blockingGet()
+                .track
+                .toPoints()
+        )
+        val file = File.createTempFile("spatial_index", ".bin")
+        TrackSpatialIndex.build(geometry).writeToFile(file)
+        val spatialIndex = TrackSpatialIndex.readFromFile(file)
+        file.delete()
+
+        val segmentIndex = geometry.segmentCount / 2
+        val lat = (geometry.lats[segmentIndex] + geometry.lats[segmentIndex + 1]) / 2
+        val lng = (geometry.lngs[segmentIndex] + geometry.lngs[segmentIndex + 1]) / 2
+
+        Assert.assertTrue(segmentIndex in spatialIndex.getSegmentsAround(lat, lng, 10.0))
+        Assert.assertEquals(
+            0.0,
+            spatialIndex.getDistanceToTrackM(geometry, lat, lng, 10.0)!!,
+            0.01
+        )
+    }
+
+    @Test
+    fun distanceIndexProgress() {
+        val trackData = ReadGeoJsonFileUseCase()
+            .invoke(TestAssets.getInputStream("BRouterTrackWithPOI.geojson"))
+            .blockingGet()
+        val geometry = TrackGeometry(trackData.track.toPoints())
+        val distanceIndex = TrackDistanceIndex.build(
+            geometry = geometry,
+            spatialIndex = TrackSpatialIndex.build(geometry),
+            poi = trackData.poi.toPoints(),
+        )
+
+        val expectedTotalDistanceM = (0 until geometry.segmentCount)
+            .sumOf(geometry::getSegmentLengthM)
+        Assert.assertEquals(expectedTotalDistanceM, distanceIndex.totalDistanceM, 0.000001)
+
+        val segmentIndex = geometry.segmentCount / 2
+        val progress = distanceIndex.getProgress(
+            geometry.getProjection(geometry.lats[segmentIndex], geometry.lngs[segmentIndex], segmentIndex)
+        )
+        val expectedDistanceAlongM = (0 until segmentIndex)
+            .sumOf(geometry::getSegmentLengthM)
+        Assert.assertEquals(expectedDistanceAlongM, progress.distanceAlongM, 0.000001)
+        Assert.assertEquals(
+            expectedTotalDistanceM - expectedDistanceAlongM,
+            progress.distanceToGoM,
+            0.000001
+        )
+
+        // The last POI is the only one ahead of the middle of the track.
+        val lastPoi = trackData.poi.toPoints().last()
+        val lastPoiProjection = (0 until geometry.segmentCount)
+            .map { geometry.getProjection(lastPoi.latitude(), lastPoi.longitude(), it) }
+            .minByOrNull(TrackGeometry.Projection::distanceM)!!
+        val expectedLastPoiDistanceAlongM = (0 until lastPoiProjection.segmentIndex)
+            .sumOf(geometry::getSegmentLengthM) +
+                geometry.getSegmentLengthM(lastPoiProjection.segmentIndex) * lastPoiProjection.fraction
+        Assert.assertNotNull(progress.nextPoiDistanceM)
+        Assert.assertEquals(
+            expectedLastPoiDistanceAlongM - expectedDistanceAlongM,
+            progress.nextPoiDistanceM!!,
+            0.000001
+        )
+    }
+
+    @Test
+    fun simplifyTrack() {
+        val points = ReadGeoJsonFileUseCase()
+            .invoke(TestAssets.getInputStream("StravaTrack.geojson"))
+            .blockingGet()
+            .track
+            .toPoints()
+        val simplifier = TrackSimplifier(
+            cameraZoom = 15.3,
+            pixelRatio = 1.0,
+        )
+
+        val simplifiedPoints = simplifier
+            .simplify(LineString.fromLngLats(points))
+            .coordinates()
+
+        Assert.assertTrue(simplifiedPoints.size < points.size)
+        Assert.assertEquals(6, simplifier.coordinateDecimals)
+        Assert.assertEquals(points.first().longitude(), simplifiedPoints.first().longitude(), 0.000001)
+        Assert.assertEquals(points.last().latitude(), simplifiedPoints.last().latitude(), 0.000001)
+
+        // Half a pixel at this zoom and latitude is about 0.65 m.
+        val simplifiedGeometry = TrackGeometry(simplifiedPoints)
+        val spatialIndex = TrackSpatialIndex.build(simplifiedGeometry)
+        points.forEach { point ->
+            Assert.assertNotNull(
+                spatialIndex.getDistanceToTrackM(
+                    geometry = simplifiedGeometry,
+                    lat = point.latitude(),
+                    lng = point.longitude(),
+                    maxDistanceM = 1.0,
+                )
+            )
+        }
+    }
 }